@@ -0,0 +1,176 @@
+package ch.sebpiller.iot.bluetooth;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups the bluetooth devices by the adapter (radio) they are reached through, and makes their calls go through the
+ * {@link AdapterScheduler} of that adapter: the devices of an adapter are served round-robin, the adapters work in
+ * parallel.
+ * <p>
+ * The devices that are not bound to an adapter are spread over the adapters available (see {@link #assign(String)}):
+ * one radio can only serve a few lamps within a beat, more lamps need more adapters (eg. hci0, hci1).
+ */
+public final class AdapterRegistry implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(AdapterRegistry.class);
+
+    private final List<String> adapters;
+
+    // guarded by this
+    private final Map<String, Set<String>> devices = new LinkedHashMap<>();
+    private final Map<String, AdapterScheduler> schedulers = new LinkedHashMap<>();
+
+    /**
+     * @param adapters The adapters the devices can be spread over, eg. from
+     *                 {@link ch.sebpiller.iot.bluetooth.bluez.BluetoothHelper#listAdapters()}.
+     */
+    public AdapterRegistry(String... adapters) {
+        Validate.notEmpty(adapters, "no bluetooth adapter given");
+        Validate.noNullElements(adapters);
+
+        this.adapters = Collections.unmodifiableList(Arrays.asList(adapters.clone()));
+        for (String adapter : adapters) {
+            this.devices.put(adapter, new LinkedHashSet<>());
+        }
+    }
+
+    /**
+     * @return The adapter #device is registered on, or else the adapter available with the fewest devices.
+     */
+    public synchronized String assign(String device) {
+        String best = null;
+
+        for (Map.Entry<String, Set<String>> e : devices.entrySet()) {
+            if (e.getValue().contains(device)) {
+                return e.getKey();
+            }
+        }
+
+        for (String adapter : adapters) {
+            if (best == null || devices.get(adapter).size() < devices.get(best).size()) {
+                best = adapter;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Register #device on #adapter.
+     *
+     * @param adapter  The adapter #delegate reaches the device through, not necessarily one given at creation.
+     * @param device   The device, eg. its mac address.
+     * @param delegate The connection to the device.
+     * @return A delegate running the calls of #delegate on the scheduler of #adapter. Closing it unregisters the
+     * device, and closes #delegate.
+     */
+    public synchronized BluetoothDelegate register(String adapter, String device, BluetoothDelegate delegate) {
+        Validate.notBlank(adapter);
+        Validate.notBlank(device);
+        Validate.notNull(delegate);
+
+        for (Map.Entry<String, Set<String>> e : devices.entrySet()) {
+            Validate.isTrue(!e.getValue().contains(device), "device %s is already registered on %s", device, e.getKey());
+        }
+
+        devices.computeIfAbsent(adapter, a -> new LinkedHashSet<>()).add(device);
+        AdapterScheduler scheduler = schedulers.computeIfAbsent(adapter, AdapterScheduler::new);
+
+        LOG.info("registered device {} on adapter {}", device, adapter);
+        return new ScheduledDelegate(scheduler, device, delegate);
+    }
+
+    private synchronized void unregister(String adapter, String device) {
+        Set<String> group = devices.get(adapter);
+        if (group != null) {
+            group.remove(device);
+        }
+    }
+
+    /**
+     * @return The devices registered, grouped by adapter.
+     */
+    public synchronized Map<String, List<String>> getGroups() {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        devices.forEach((adapter, group) -> groups.put(adapter, Collections.unmodifiableList(new ArrayList<>(group))));
+        return Collections.unmodifiableMap(groups);
+    }
+
+    /**
+     * Stops the threads of the adapters, once the calls queued are done. The delegates registered can not be used
+     * anymore.
+     */
+    @Override
+    public void close() {
+        List<AdapterScheduler> toClose;
+        synchronized (this) {
+            toClose = new ArrayList<>(schedulers.values());
+            schedulers.clear();
+        }
+
+        toClose.forEach(AdapterScheduler::close);
+    }
+
+    /**
+     * Runs the calls of a delegate on the scheduler of its adapter. The caller waits for each call to be done, so the
+     * arrays it gives can be reused as soon as the call returns, as for any delegate.
+     */
+    private final class ScheduledDelegate implements BluetoothDelegate {
+        private final AdapterScheduler scheduler;
+        private final String device;
+        private final BluetoothDelegate delegate;
+
+        ScheduledDelegate(AdapterScheduler scheduler, String device, BluetoothDelegate delegate) {
+            this.scheduler = scheduler;
+            this.device = device;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(byte... bytes) throws BluetoothException {
+            scheduler.call(device, () -> {
+                delegate.write(bytes);
+                return null;
+            });
+        }
+
+        @Override
+        public void write(WriteType type, byte... bytes) throws BluetoothException {
+            scheduler.call(device, () -> {
+                delegate.write(type, bytes);
+                return null;
+            });
+        }
+
+        @Override
+        public List<WriteResult> writeBatch(WriteType type, List<byte[]> commands) {
+            return scheduler.call(device, () -> delegate.writeBatch(type, commands));
+        }
+
+        @Override
+        public boolean isReadSupported() {
+            return delegate.isReadSupported();
+        }
+
+        @Override
+        public byte[] read() throws BluetoothException {
+            return scheduler.call(device, delegate::read);
+        }
+
+        @Override
+        public void close() throws Exception {
+            unregister(scheduler.getAdapter(), device);
+            delegate.close();
+        }
+    }
+}
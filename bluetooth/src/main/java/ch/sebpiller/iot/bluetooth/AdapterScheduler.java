@@ -0,0 +1,170 @@
+package ch.sebpiller.iot.bluetooth;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the calls to the devices of one bluetooth adapter, one at a time, on a thread dedicated to the adapter.
+ * <p>
+ * The devices reached through the same adapter share a single radio: their writes can not be sent in parallel anyway.
+ * The calls are queued per device, and the devices are served round-robin, one call each: a device flooded with calls
+ * delays the others by one call at most, instead of holding the radio until its queue is empty.
+ */
+public final class AdapterScheduler implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(AdapterScheduler.class);
+
+    private final String adapter;
+    private final Thread thread;
+
+    // guarded by this
+    private final Map<Object, Deque<FutureTask<?>>> queues = new HashMap<>();
+    /**
+     * The devices having calls queued, in the order they are served.
+     */
+    private final Deque<Object> ready = new ArrayDeque<>();
+    private boolean closed;
+
+    public AdapterScheduler(String adapter) {
+        this.adapter = Validate.notBlank(adapter);
+        this.thread = new Thread(this::serve, "bt-adapter-" + adapter);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public String getAdapter() {
+        return adapter;
+    }
+
+    /**
+     * Run #call on the thread of the adapter, when the turn of #device comes, and wait for its result.
+     *
+     * @param device The device called, any key identifying it (eg. its mac address).
+     * @return The result of #call.
+     * @throws BluetoothException    if #call throws a checked exception, or if interrupted while waiting.
+     * @throws IllegalStateException if this scheduler is closed.
+     */
+    public <T> T call(Object device, Callable<T> call) throws BluetoothException {
+        Validate.notNull(device);
+        Validate.notNull(call);
+
+        if (Thread.currentThread() == thread) {
+            // called from a call: already on the radio
+            return run(call);
+        }
+
+        FutureTask<T> task = new FutureTask<>(call);
+        submit(device, task);
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            task.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new BluetoothException("interrupted while waiting for adapter " + adapter, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new BluetoothException(cause);
+        }
+    }
+
+    private static <T> T run(Callable<T> call) {
+        try {
+            return call.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BluetoothException(e);
+        }
+    }
+
+    private synchronized void submit(Object device, FutureTask<?> task) {
+        if (closed) {
+            throw new IllegalStateException("scheduler of adapter " + adapter + " is closed");
+        }
+
+        Deque<FutureTask<?>> queue = queues.computeIfAbsent(device, d -> new ArrayDeque<>());
+        if (queue.isEmpty()) {
+            ready.addLast(device);
+        }
+        queue.addLast(task);
+        notifyAll();
+    }
+
+    /**
+     * @return The next call to run, null once closed and all the calls queued are done.
+     */
+    private synchronized FutureTask<?> next() throws InterruptedException {
+        while (ready.isEmpty() && !closed) {
+            wait();
+        }
+
+        Object device = ready.pollFirst();
+        if (device == null) {
+            return null;
+        }
+
+        Deque<FutureTask<?>> queue = queues.get(device);
+        FutureTask<?> task = queue.pollFirst();
+        if (queue.isEmpty()) {
+            queues.remove(device);
+        } else {
+            // back to the end of the line
+            ready.addLast(device);
+        }
+        return task;
+    }
+
+    private void serve() {
+        try {
+            FutureTask<?> task;
+            while ((task = next()) != null) {
+                task.run();
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("scheduler of adapter {} interrupted", adapter);
+        }
+    }
+
+    /**
+     * Refuses new calls, and waits for the calls queued to be done.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (thread.isAlive()) {
+            LOG.warn("calls to adapter {} still running after close", adapter);
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AdapterScheduler{" + adapter + '}';
+    }
+}
@@ -3,7 +3,8 @@ package ch.sebpiller.iot.bluetooth;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 /**
@@ -23,6 +24,9 @@ public interface BluetoothDelegate extends AutoCloseable {
      * Run a callable function a few times until it succeed, or until it has run #maxRetries times. If the call didn't
      * success, it either throws the exception (wraps it in a {@link RuntimeException} if needed) (if it is not in the
      * #retryExceptions list) or retry the call.
+     * <p>
+     * Retries at once, whatever the previous calls: prefer a {@link RetryPolicy} held for the device, which backs off
+     * and stops calling a device that is unreachable.
      *
      * @param call            The call to invoke.
      * @param maxRetries      Maximum number of retries.
@@ -30,45 +34,98 @@ public interface BluetoothDelegate extends AutoCloseable {
      * @return The result of the call if any.
      */
     static <T> T retry(Callable<T> call, int maxRetries, Class<? extends Exception>... retryExceptions) {
-        Class<? extends Exception>[] re = retryExceptions.length == 0 ? new Class[]{Exception.class} : retryExceptions;
+        return RetryPolicy.immediate(maxRetries, retryExceptions).call(call);
+    }
 
-        T result = null;
-        Exception lastException = null;
+    /**
+     * Writes #bytes to the device, throwing {@link BluetoothException} if anything bad happens.
+     * <p>
+     * The caller may reuse #bytes once the call returns: implementations must copy it to keep it longer.
+     *
+     * @param bytes The content to write to the device.
+     * @throws BluetoothException if anything bad happens.
+     */
+    void write(byte... bytes) throws BluetoothException;
 
-        int failedCount = 0;
-        boolean success = false;
-        boolean fatal = false;
+    /**
+     * How a write is acknowledged by the device.
+     */
+    enum WriteType {
+        /**
+         * Write with response: the device acknowledges the write before the next one can be sent. Use it for the
+         * writes that must not be lost.
+         */
+        REQUEST,
+        /**
+         * Write without response: the write is not acknowledged, so writes can follow each other much faster, at the
+         * risk of losing one. Use it for high-rate writes, where the next one supersedes a lost one anyway.
+         */
+        COMMAND
+    }
 
-        do {
-            try {
-                result = call.call();
-                success = true;
-            } catch (Exception e) {
-                failedCount++;
-                lastException = e;
+    /**
+     * Writes #bytes to the device, with the given acknowledgement. Implementations that do not support
+     * {@link WriteType#COMMAND} use a normal {@link #write(byte...)}, which is what this default implementation does.
+     *
+     * @param type  How the write is acknowledged.
+     * @param bytes The content to write to the device.
+     * @throws BluetoothException if anything bad happens.
+     */
+    default void write(WriteType type, byte... bytes) throws BluetoothException {
+        write(bytes);
+    }
+
+    /**
+     * Writes several commands to the device, in order. Implementations send them back-to-back, paying the costs of
+     * the lookup of the device and of the check of the connection once for the whole batch.
+     * <p>
+     * A failure does not interrupt the batch with an exception: it is reported in the result of the failed command,
+     * and the commands after it are skipped. This default implementation calls {@link #write(WriteType, byte...)}
+     * for each command.
+     * <p>
+     * As for {@link #write(byte...)}, the caller may reuse the commands once the call returns.
+     *
+     * @param type     How the writes are acknowledged.
+     * @param commands The contents to write to the device.
+     * @return The outcome of each command, in the same order.
+     */
+    default List<WriteResult> writeBatch(WriteType type, List<byte[]> commands) {
+        List<WriteResult> results = new ArrayList<>(commands.size());
+        BluetoothException error = null;
 
-                if (Arrays.stream(re).noneMatch(tClass -> tClass.isAssignableFrom(e.getClass())))
-                    fatal = true;
-                else if (_LOG.isWarnEnabled())
-                    _LOG.warn("FAILED - Command failed on retry {} of {}", failedCount, maxRetries);
+        for (byte[] bytes : commands) {
+            if (error != null) {
+                results.add(WriteResult.skipped(bytes, error));
+                continue;
             }
-        } while (!success && !fatal && failedCount < maxRetries);
 
-        if (success) {
-            return result;
+            try {
+                write(type, bytes);
+                results.add(WriteResult.sent(bytes));
+            } catch (BluetoothException e) {
+                error = e;
+                results.add(WriteResult.failed(bytes, e));
+            }
         }
 
-        throw lastException instanceof RuntimeException ?
-                ((RuntimeException) lastException) :
-                new RuntimeException(lastException);
+        return results;
     }
 
     /**
-     * Writes #bytes to the device, throwing {@link BluetoothException} if anything bad happens.
-     *
-     * @param bytes The content to write to the device.
-     * @throws BluetoothException if anything bad happens.
+     * @return true if {@link #read()} is supported.
      */
-    void write(byte... bytes) throws BluetoothException;
+    default boolean isReadSupported() {
+        return false;
+    }
 
+    /**
+     * Reads the current value of the device (eg. the answer to the last command written).
+     *
+     * @return The value read.
+     * @throws BluetoothException            if anything bad happens.
+     * @throws UnsupportedOperationException if the device can not be read.
+     */
+    default byte[] read() throws BluetoothException {
+        throw new UnsupportedOperationException("reading is not supported by " + getClass().getSimpleName());
+    }
 }
@@ -0,0 +1,263 @@
+package ch.sebpiller.iot.bluetooth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Retries the calls to a device, with an exponential backoff and a circuit breaker.
+ * <p>
+ * A failed attempt is retried after a delay that doubles at each attempt, randomized by a jitter so several lamps
+ * failing together do not retry together. Once #failureThreshold calls in a row have failed (all their attempts
+ * exhausted), the circuit opens: further calls fail immediately with a {@link CircuitOpenException}, without
+ * touching the device. After the open delay, a single trial call is let through: if it succeeds the circuit closes,
+ * otherwise it opens again for twice as long (up to a maximum). An unreachable device thus costs almost nothing until
+ * it comes back.
+ * <p>
+ * An instance holds the failure budget of a single device: do not share it between devices.
+ */
+public final class RetryPolicy {
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+    private enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private int maxAttempts = 3;
+    private long initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(20);
+    private long maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(200);
+    private double jitter = .5;
+    private int failureThreshold = 3;
+    private long initialOpenNanos = TimeUnit.SECONDS.toNanos(1);
+    private long maxOpenNanos = TimeUnit.SECONDS.toNanos(30);
+    @SuppressWarnings("unchecked")
+    private Class<? extends Exception>[] retryOn = new Class[]{BluetoothException.class};
+    private LongSupplier nanoClock = System::nanoTime;
+
+    // breaker state, guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openNanos;
+    private long openUntil;
+
+    /**
+     * A policy retrying #maxAttempts times at once, without circuit breaker: the behavior of
+     * {@link BluetoothDelegate#retry(Callable, int, Class[])}.
+     */
+    @SafeVarargs
+    public static RetryPolicy immediate(int maxAttempts, Class<? extends Exception>... retryOn) {
+        return new RetryPolicy()
+                .maxAttempts(maxAttempts)
+                .backoff(0, 0, TimeUnit.MILLISECONDS)
+                .breaker(0, 0, 0, TimeUnit.MILLISECONDS)
+                .retryOn(retryOn);
+    }
+
+    /**
+     * @param maxAttempts Number of attempts of a call before it fails.
+     */
+    public RetryPolicy maxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("at least one attempt is required");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @param initial Delay before the first retry, doubled at each following one.
+     * @param max     Maximum delay between two attempts.
+     */
+    public RetryPolicy backoff(long initial, long max, TimeUnit unit) {
+        this.initialBackoffNanos = unit.toNanos(initial);
+        this.maxBackoffNanos = unit.toNanos(max);
+        return this;
+    }
+
+    /**
+     * @param jitter Random part of the backoff delays, 0 (none) .. 1 (from 0 to twice the delay).
+     */
+    public RetryPolicy jitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be in range 0..1");
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * @param failureThreshold Number of failed calls in a row that opens the circuit, 0 to never open it.
+     * @param initialOpen      Time the circuit stays open the first time, doubled each time the trial call fails.
+     * @param maxOpen          Maximum time the circuit stays open.
+     */
+    public RetryPolicy breaker(int failureThreshold, long initialOpen, long maxOpen, TimeUnit unit) {
+        this.failureThreshold = failureThreshold;
+        this.initialOpenNanos = unit.toNanos(initialOpen);
+        this.maxOpenNanos = unit.toNanos(maxOpen);
+        return this;
+    }
+
+    /**
+     * @param retryOn Exceptions that lead to a retry, and count as failures of the device. Default: any exception.
+     */
+    @SafeVarargs
+    public final RetryPolicy retryOn(Class<? extends Exception>... retryOn) {
+        @SuppressWarnings("unchecked")
+        Class<? extends Exception>[] re = retryOn.length == 0 ? new Class[]{Exception.class} : retryOn.clone();
+        this.retryOn = re;
+        return this;
+    }
+
+    RetryPolicy clock(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        return this;
+    }
+
+    /**
+     * @return true if calls currently fail fast.
+     */
+    public synchronized boolean isOpen() {
+        return this.state != State.CLOSED && this.nanoClock.getAsLong() - this.openUntil < 0;
+    }
+
+    /**
+     * Invoke #call, retrying it as per this policy.
+     *
+     * @return The result of the call.
+     * @throws CircuitOpenException if the circuit is open.
+     * @throws RuntimeException     the last failure of the call, wrapped if needed.
+     */
+    public <T> T call(Callable<T> call) {
+        boolean trial = acquire();
+        int attempts = trial ? 1 : this.maxAttempts;
+        Exception lastException = null;
+
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            try {
+                T result = call.call();
+                succeeded();
+                return result;
+            } catch (Exception e) {
+                lastException = e;
+
+                if (!isRetryable(e)) {
+                    release(trial);
+                    throw wrap(e);
+                }
+
+                if (attempt < attempts) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("FAILED - Command failed on attempt {} of {}: {}", attempt, attempts, e.toString());
+                    }
+                    if (!backoff(attempt)) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        failed(trial, lastException);
+        throw wrap(lastException);
+    }
+
+    private boolean isRetryable(Exception e) {
+        for (Class<? extends Exception> c : this.retryOn) {
+            if (c.isInstance(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static RuntimeException wrap(Exception e) {
+        return e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+    }
+
+    /**
+     * Sleep before the attempt following #attempt.
+     *
+     * @return false if interrupted.
+     */
+    private boolean backoff(int attempt) {
+        long delay = Math.min(this.maxBackoffNanos, this.initialBackoffNanos << Math.min(attempt - 1, 30));
+        if (delay <= 0) {
+            return true;
+        }
+
+        delay = (long) (delay * (1 - this.jitter + 2 * this.jitter * ThreadLocalRandom.current().nextDouble()));
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the call is the trial of a half-open circuit.
+     * @throws CircuitOpenException if the call must not be made.
+     */
+    private synchronized boolean acquire() {
+        switch (this.state) {
+            case OPEN:
+                if (this.nanoClock.getAsLong() - this.openUntil < 0) {
+                    throw new CircuitOpenException(TimeUnit.NANOSECONDS.toMillis(this.openUntil - this.nanoClock.getAsLong()));
+                }
+                this.state = State.HALF_OPEN;
+                return true;
+            case HALF_OPEN:
+                // a trial call is already in progress
+                throw new CircuitOpenException(0);
+            default:
+                return false;
+        }
+    }
+
+    private synchronized void release(boolean trial) {
+        if (trial) {
+            // not a failure of the device: let another call try
+            this.state = State.OPEN;
+        }
+    }
+
+    private synchronized void succeeded() {
+        if (this.state != State.CLOSED) {
+            LOG.info("device reachable again, circuit closed");
+        }
+        this.state = State.CLOSED;
+        this.consecutiveFailures = 0;
+        this.openNanos = 0;
+    }
+
+    private synchronized void failed(boolean trial, Exception e) {
+        this.consecutiveFailures++;
+
+        if (trial) {
+            this.openNanos = Math.min(this.maxOpenNanos, this.openNanos * 2);
+        } else if (this.failureThreshold > 0 && this.consecutiveFailures >= this.failureThreshold) {
+            this.openNanos = this.initialOpenNanos;
+        } else {
+            LOG.warn("FAILED - Command failed after {} attempts: {}", this.maxAttempts, e.toString());
+            return;
+        }
+
+        this.state = State.OPEN;
+        this.openUntil = this.nanoClock.getAsLong() + this.openNanos;
+        LOG.warn("device unreachable after {} failed calls ({}), circuit open for {} ms",
+                this.consecutiveFailures, e.toString(), TimeUnit.NANOSECONDS.toMillis(this.openNanos));
+    }
+
+    /**
+     * Thrown instead of calling a device considered unreachable.
+     */
+    public static final class CircuitOpenException extends BluetoothException {
+        CircuitOpenException(long remainingMillis) {
+            // thrown on every call while open: no stack trace
+            super("device unreachable, calls suspended for " + remainingMillis + " ms", null, false, false);
+        }
+    }
+}
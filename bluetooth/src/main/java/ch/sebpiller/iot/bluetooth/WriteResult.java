@@ -0,0 +1,67 @@
+package ch.sebpiller.iot.bluetooth;
+
+/**
+ * Outcome of one of the writes of a {@link BluetoothDelegate#writeBatch(BluetoothDelegate.WriteType, java.util.List)}.
+ */
+public final class WriteResult {
+    private final byte[] bytes;
+    private final boolean attempted;
+    private final BluetoothException error;
+
+    private WriteResult(byte[] bytes, boolean attempted, BluetoothException error) {
+        this.bytes = bytes;
+        this.attempted = attempted;
+        this.error = error;
+    }
+
+    /**
+     * #bytes have been written.
+     */
+    public static WriteResult sent(byte[] bytes) {
+        return new WriteResult(bytes, true, null);
+    }
+
+    /**
+     * The write of #bytes has failed with #error.
+     */
+    public static WriteResult failed(byte[] bytes, BluetoothException error) {
+        return new WriteResult(bytes, true, error);
+    }
+
+    /**
+     * #bytes have not been written, because of the failure of a previous write of the batch.
+     */
+    public static WriteResult skipped(byte[] bytes, BluetoothException cause) {
+        return new WriteResult(bytes, false, cause);
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public boolean isSent() {
+        return error == null;
+    }
+
+    /**
+     * @return false if the write has not even been tried.
+     */
+    public boolean isAttempted() {
+        return attempted;
+    }
+
+    /**
+     * @return The cause of the failure, or null if sent.
+     */
+    public BluetoothException getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteResult{" +
+                "length=" + bytes.length +
+                ", " + (isSent() ? "sent" : attempted ? "failed: " + error : "skipped") +
+                '}';
+    }
+}
@@ -10,7 +10,9 @@ import org.freedesktop.dbus.exceptions.DBusExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
 import java.util.Objects;
+import java.util.stream.Collectors;
 
 /**
  * Helper class to centralize common tasks related to bluetooth management.
@@ -46,6 +48,15 @@ public class BluetoothHelper {
         return Objects.requireNonNull(man, "no device manager can be acquired");
     }
 
+    /**
+     * @return The names of the bluetooth adapters installed (eg. hci0, hci1).
+     */
+    public static List<String> listAdapters() throws BluetoothException {
+        return discoverDeviceManager().getAdapters().stream()
+                .map(BluetoothAdapter::getDeviceName)
+                .collect(Collectors.toList());
+    }
+
     /**
      * Print all gathered bluetooth information to info level, and detailed infos to debug in a slf4j implementation.
      */
@@ -118,7 +129,7 @@ public class BluetoothHelper {
     }
 
     public static BluetoothDevice findDeviceOnAdapter(DeviceManager manager, String localBtAdapter, String remoteDeviceMac) throws BluetoothException {
-        // TODO implement a cache of devices ?
+        // uncached lookup, see BluezConnectionManager for a cached one
         LOG.info("searching for device {} on {}", remoteDeviceMac, localBtAdapter);
         if (LOG.isDebugEnabled()) {
             LOG.debug("  > dbus connection status: {}", manager.getDbusConnection().isConnected() ? "connected" : "disconnected");
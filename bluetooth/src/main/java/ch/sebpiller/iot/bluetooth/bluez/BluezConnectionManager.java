@@ -0,0 +1,567 @@
+package ch.sebpiller.iot.bluetooth.bluez;
+
+import ch.sebpiller.iot.bluetooth.BluetoothException;
+import ch.sebpiller.iot.bluetooth.bluez.scan.ConnectionPropertiesChangedHandler;
+import com.github.hypfvieh.bluetooth.DeviceManager;
+import com.github.hypfvieh.bluetooth.DiscoveryFilter;
+import com.github.hypfvieh.bluetooth.wrapper.BluetoothAdapter;
+import com.github.hypfvieh.bluetooth.wrapper.BluetoothDevice;
+import com.github.hypfvieh.bluetooth.wrapper.BluetoothGattCharacteristic;
+import com.github.hypfvieh.bluetooth.wrapper.BluetoothGattService;
+import org.bluez.exceptions.BluezFailedException;
+import org.bluez.exceptions.BluezInvalidArgumentsException;
+import org.bluez.exceptions.BluezNotReadyException;
+import org.bluez.exceptions.BluezNotSupportedException;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the connections to bluetooth devices warm, and caches every level of the lookup of a GATT characteristic: the
+ * dbus device manager, the adapters (by name), the devices (by adapter and MAC address) and the characteristics (by
+ * device, service UUID and characteristic UUID).
+ * <p>
+ * The full lookup (discovery of the device manager, scan filter, search of the device among the known ones, connection,
+ * resolution of the service and characteristic) only runs the first time a characteristic is requested. When a level
+ * is found broken, either by the background health check or after a failed I/O reported with
+ * {@link #invalidate(BluetoothGattCharacteristic)}, only this level and the ones below it are rebuilt: a device that
+ * dropped out is simply reconnected, its characteristics being kept.
+ * <p>
+ * The state of each device is held on its own: a characteristic already resolved is served without any lock, and the
+ * lookup of a device only makes the callers of the same device wait. The probes and reconnections triggered by the
+ * health check, the connection signals and the failed I/Os run on the health check thread.
+ * <p>
+ * The connection state of the devices is tracked from the "Connected" property changes signaled by BlueZ, so
+ * {@link #ensureConnected(String, String, BluetoothGattCharacteristic)} costs no dbus call while the link is up. The
+ * connection is only probed once a signal or a failed I/O has reported it down, or if the signals can not be received:
+ * the caller then restores it itself if the health check has not done it yet, and blocks until BlueZ connects the
+ * device or gives up.
+ * <p>
+ * A device is shared by all the users that acquired it ({@link #acquire(String, String)}), and only disconnected
+ * once the last of them has released it.
+ * <p>
+ * A single instance is shared by all the {@link BluezDelegate}s ({@link #getInstance()}).
+ */
+public final class BluezConnectionManager implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(BluezConnectionManager.class);
+
+    /**
+     * Default period of the health check, in seconds.
+     */
+    public static final int DEFAULT_HEALTH_CHECK_PERIOD = 10;
+
+    private static BluezConnectionManager instance;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "bluez-health-check");
+        t.setDaemon(true);
+        return t;
+    });
+    private final long healthCheckPeriodMillis;
+    // guarded by this
+    private ScheduledFuture<?> healthCheck;
+
+    private final Object managerLock = new Object();
+    private volatile DeviceManager manager;
+    private final Map<String, BluetoothAdapter> adapters = new ConcurrentHashMap<>();
+    /**
+     * Devices kept connected by the health check, by key (see {@link #deviceKey(String, String)}).
+     */
+    private final Map<String, DeviceState> devices = new ConcurrentHashMap<>();
+    /**
+     * Filters already applied to the device manager.
+     */
+    private final Set<Map<DiscoveryFilter, Object>> filters = ConcurrentHashMap.newKeySet();
+    /**
+     * Adapters whose connection signals are received.
+     */
+    private final Set<String> signaledAdapters = ConcurrentHashMap.newKeySet();
+
+    public BluezConnectionManager(long healthCheckPeriod, TimeUnit unit) {
+        this.healthCheckPeriodMillis = unit.toMillis(healthCheckPeriod);
+    }
+
+    /**
+     * @return The instance shared by the whole application.
+     */
+    public static synchronized BluezConnectionManager getInstance() {
+        if (instance == null) {
+            instance = new BluezConnectionManager(DEFAULT_HEALTH_CHECK_PERIOD, TimeUnit.SECONDS);
+        }
+        return instance;
+    }
+
+    private static String deviceKey(String adapter, String mac) {
+        return adapter + '/' + mac.toUpperCase(Locale.ROOT);
+    }
+
+    private static String characteristicKey(UUID service, UUID charac) {
+        return service + "/" + charac;
+    }
+
+    /**
+     * Register a user of the device #mac on #adapter: the device is kept until all its users have released it (see
+     * {@link #release(String, String)}).
+     */
+    public void acquire(String adapter, String mac) {
+        checkOpen();
+        this.devices.compute(deviceKey(adapter, mac), (k, state) -> {
+            DeviceState s = state != null ? state : new DeviceState(k, adapter, mac);
+            s.users++;
+            return s;
+        });
+    }
+
+    /**
+     * @return The number of users of the device #mac on #adapter.
+     */
+    int getUsers(String adapter, String mac) {
+        DeviceState state = this.devices.get(deviceKey(adapter, mac));
+        return state == null ? 0 : state.users;
+    }
+
+    /**
+     * Get the characteristic #characUuid of the service #serviceUuid of the device #mac on #adapter, connected. The
+     * device is then kept connected by the health check until {@link #release(String, String)} is called.
+     *
+     * @param filter Scan filter to apply to the device manager, may be null.
+     * @throws BluetoothException if the characteristic can not be reached.
+     */
+    public BluetoothGattCharacteristic getCharacteristic(String adapter, String mac, UUID serviceUuid, UUID characUuid, Map<DiscoveryFilter, Object> filter) throws BluetoothException {
+        checkOpen();
+
+        String ck = characteristicKey(serviceUuid, characUuid);
+        DeviceState state = this.devices.computeIfAbsent(deviceKey(adapter, mac), k -> new DeviceState(k, adapter, mac));
+        BluetoothGattCharacteristic charac = state.characteristics.get(ck);
+
+        if (charac == null) {
+            // looked up once, by the first caller of this device
+            synchronized (state) {
+                charac = state.characteristics.get(ck);
+
+                if (charac == null) {
+                    applyFilter(filter);
+                    charac = resolveCharacteristic(lookUp(state), serviceUuid, characUuid);
+                    state.characteristics.put(ck, charac);
+                    state.watched = true;
+                }
+            }
+
+            startHealthCheck();
+        }
+
+        return charac;
+    }
+
+    /**
+     * Make sure the device #mac on #adapter, holding #charac, is connected. Reads the signaled state of the link,
+     * and only probes the device if the link is known to be down or is not signaled. A device found disconnected is
+     * reconnected on the caller's thread, which blocks until BlueZ connects it or gives up.
+     *
+     * @throws BluetoothException if the device can not be reconnected.
+     */
+    public void ensureConnected(String adapter, String mac, BluetoothGattCharacteristic charac) throws BluetoothException {
+        DeviceState state = this.devices.get(deviceKey(adapter, mac));
+
+        if (state != null && state.signaled && state.up) {
+            return;
+        }
+
+        BluetoothHelper.reconnectIfNeeded(charac);
+
+        if (state != null) {
+            state.up = true;
+        }
+    }
+
+    /**
+     * Record the connection state of a device, as signaled by BlueZ. Called from the dbus signal thread.
+     */
+    private void connectionChanged(String adapter, String address, boolean connected) {
+        DeviceState state = this.devices.get(deviceKey(adapter, address));
+
+        if (state == null || !state.signaled) {
+            return;
+        }
+
+        state.up = connected;
+
+        if (!connected) {
+            LOG.info("device {} disconnected", state.key);
+
+            // restore the link without waiting for the next I/O
+            recoverLater(state, null);
+        }
+    }
+
+    /**
+     * Report that an I/O on #charac has failed. Returns at once: the device is then reconnected if it has dropped out,
+     * otherwise (or if the reconnection fails) the characteristic is evicted from the cache and resolved again by the
+     * next call to {@link #getCharacteristic(String, String, UUID, UUID, Map)}.
+     */
+    public void invalidate(BluetoothGattCharacteristic charac) {
+        for (DeviceState state : this.devices.values()) {
+            for (Map.Entry<String, BluetoothGattCharacteristic> e : state.characteristics.entrySet()) {
+                if (e.getValue() == charac) {
+                    // the link will be probed by the next I/O, unless restored before
+                    state.up = false;
+                    recoverLater(state, e.getKey());
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reconnect the device of #state on the health check thread. If the device was connected, or can not be reconnected,
+     * #failedCharacteristic (if any) is evicted from the cache.
+     */
+    private void recoverLater(DeviceState state, String failedCharacteristic) {
+        try {
+            this.scheduler.execute(() -> {
+                if (this.devices.get(state.key) != state) {
+                    // released meanwhile
+                    return;
+                }
+
+                boolean reconnected = !isConnected(state.device) && probe(state);
+                if (!reconnected && failedCharacteristic != null) {
+                    LOG.info("characteristic {}/{} evicted from the cache", state.key, failedCharacteristic);
+                    state.characteristics.remove(failedCharacteristic);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.debug("not reconnecting {}: connection manager closed", state.key);
+        }
+    }
+
+    private static boolean isConnected(BluetoothDevice device) {
+        try {
+            return device != null && Boolean.TRUE.equals(device.isConnected());
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Unregister a user of the device #mac on #adapter. Once the last user has released it, the device is not kept
+     * connected anymore, and is disconnected.
+     */
+    public void release(String adapter, String mac) {
+        DeviceState[] released = new DeviceState[1];
+        this.devices.computeIfPresent(deviceKey(adapter, mac), (k, state) -> {
+            if (--state.users > 0) {
+                return state;
+            }
+            released[0] = state;
+            return null;
+        });
+
+        if (released[0] != null) {
+            tearDown(released[0]);
+        }
+    }
+
+    private void tearDown(DeviceState state) {
+        if (state != null) {
+            BluetoothDevice device = state.device;
+            state.drop();
+
+            if (device != null) {
+                try {
+                    device.disconnect();
+                } catch (RuntimeException e) {
+                    LOG.debug("unable to disconnect {}: {}", state.key, e.toString());
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (this.devices.isEmpty() && this.healthCheck != null) {
+                this.healthCheck.cancel(false);
+                this.healthCheck = null;
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (this.scheduler.isShutdown()) {
+            throw new IllegalStateException("connection manager has been closed");
+        }
+    }
+
+    private synchronized void startHealthCheck() {
+        if (this.healthCheck == null && this.healthCheckPeriodMillis > 0 && !this.scheduler.isShutdown()) {
+            this.healthCheck = this.scheduler.scheduleWithFixedDelay(this::checkHealth,
+                    this.healthCheckPeriodMillis, this.healthCheckPeriodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Verify each level, from the top, and drop the broken ones. The devices watched are reconnected. Runs on the
+     * health check thread.
+     */
+    void checkHealth() {
+        try {
+            DeviceManager m = this.manager;
+            if (m != null && !m.getDbusConnection().isConnected()) {
+                LOG.warn("dbus connection lost, all bluetooth objects will be looked up again");
+                clear();
+            }
+
+            this.adapters.entrySet().removeIf(e -> {
+                try {
+                    return !Boolean.TRUE.equals(e.getValue().isPowered());
+                } catch (RuntimeException ex) {
+                    LOG.warn("adapter {} is broken: {}", e.getKey(), ex.toString());
+                    return true;
+                }
+            });
+
+            for (DeviceState state : this.devices.values()) {
+                if (state.watched) {
+                    probe(state);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("bluetooth health check failed: {}", e.toString(), e);
+        }
+    }
+
+    /**
+     * Check that the device of #state is connected, reconnecting it if needed, or looking it up again if it has been
+     * dropped. A device that can not be reached is only marked down, its characteristics are kept.
+     *
+     * @return true if the device is connected.
+     */
+    private boolean probe(DeviceState state) {
+        if (!this.adapters.containsKey(state.adapter)) {
+            // the adapter has been dropped: look the device up again through the new one
+            state.device = null;
+        }
+
+        BluetoothDevice device = state.device;
+        boolean connected = false;
+        try {
+            if (device == null) {
+                synchronized (state) {
+                    lookUp(state);
+                }
+            } else if (!Boolean.TRUE.equals(device.isConnected())) {
+                if (!device.connect()) {
+                    throw new BluetoothException("can not reconnect to device " + state.key);
+                }
+                LOG.info("reconnected device {}", state.key);
+            }
+            connected = true;
+        } catch (RuntimeException e) {
+            // the characteristics are kept: once the device is back, only the link has to be restored
+            LOG.debug("device {} not reachable: {}", state.key, e.toString());
+        }
+
+        state.up = connected;
+        return connected;
+    }
+
+    private void clear() {
+        synchronized (this.managerLock) {
+            this.manager = null;
+        }
+        this.filters.clear();
+        this.signaledAdapters.clear();
+        this.adapters.clear();
+        this.devices.values().forEach(DeviceState::drop);
+    }
+
+    private DeviceManager getManager() {
+        DeviceManager m = this.manager;
+
+        if (m == null) {
+            synchronized (this.managerLock) {
+                m = this.manager;
+                if (m == null) {
+                    this.manager = m = BluetoothHelper.discoverDeviceManager();
+                }
+            }
+        }
+        return m;
+    }
+
+    private void applyFilter(Map<DiscoveryFilter, Object> filter) {
+        if (filter == null || filter.isEmpty() || this.filters.contains(filter)) {
+            return;
+        }
+
+        try {
+            getManager().setScanFilter(filter);
+            this.filters.add(filter);
+        } catch (BluezInvalidArgumentsException | BluezNotReadyException | BluezNotSupportedException | BluezFailedException e) {
+            throw new BluetoothException("unable to apply scan filter " + filter + ": " + e, e);
+        }
+    }
+
+    private BluetoothAdapter getAdapter(String name) {
+        BluetoothAdapter adapter = this.adapters.get(name);
+
+        if (adapter == null) {
+            adapter = getManager().getAdapters().stream()
+                    .filter(a -> Objects.equals(a.getDeviceName(), name))
+                    .findFirst()
+                    .orElseThrow(() -> new BluetoothException("bluetooth adapter " + name + " can not be found"));
+            this.adapters.put(name, adapter);
+        }
+
+        if (!this.signaledAdapters.contains(name)) {
+            try {
+                getManager().registerPropertyHandler(new ConnectionPropertiesChangedHandler(name, this::connectionChanged));
+                this.signaledAdapters.add(name);
+            } catch (DBusException | DBusExecutionException e) {
+                LOG.warn("connection signals of {} not available, connections will be probed before each I/O: {}", name, e.toString());
+            }
+        }
+
+        if (!Boolean.TRUE.equals(adapter.isPowered())) {
+            adapter.setPowered(true);
+            LOG.debug("  > switched {} on", name);
+        }
+
+        return adapter;
+    }
+
+    /**
+     * Find the device of #state and connect it. The caller holds the lock of #state.
+     */
+    private BluetoothDevice lookUp(DeviceState state) {
+        BluetoothDevice device = state.device;
+        String mac = state.mac;
+
+        if (device == null) {
+            getAdapter(state.adapter);
+            LOG.info("searching for device {} on {}", mac, state.adapter);
+
+            device = findDevice(getManager().getDevices(true), state.adapter, mac);
+            if (device == null) {
+                throw new BluetoothException("device " + mac + " is not registered on " + state.adapter + ". Please use 'bluetoothctl' to trust/connect this device.");
+            }
+        }
+
+        state.device = device;
+        if (!Boolean.TRUE.equals(device.isConnected()) && !device.connect()) {
+            state.up = false;
+            throw new BluetoothException("can not connect to device " + mac + "@" + state.adapter);
+        }
+
+        state.signaled = this.signaledAdapters.contains(state.adapter);
+        state.up = true;
+
+        return device;
+    }
+
+    /**
+     * @return The device #mac reached through #adapter among #known, null if there is none: a device paired with
+     * several adapters is known once per adapter.
+     */
+    static BluetoothDevice findDevice(List<BluetoothDevice> known, String adapter, String mac) {
+        return known.stream()
+                .filter(e -> mac.equalsIgnoreCase(e.getAddress()))
+                .filter(e -> e.getAdapter() != null && Objects.equals(e.getAdapter().getDeviceName(), adapter))
+                .findFirst()
+                .orElse(null);
+    }
+
+    private static BluetoothGattCharacteristic resolveCharacteristic(BluetoothDevice device, UUID serviceUuid, UUID characUuid) {
+        try {
+            BluetoothGattService service = device.getGattServiceByUuid(serviceUuid.toString());
+            if (service == null) {
+                throw new BluetoothException("unable to connect to service " + serviceUuid + ": maybe the device is out of range, or has not been connected?");
+            }
+            LOG.info("found service {} at UUID {}", service, serviceUuid);
+
+            BluetoothGattCharacteristic charac = service.getGattCharacteristicByUuid(characUuid.toString());
+            if (charac == null) {
+                throw new BluetoothException("unable to connect to characteristic " + characUuid + ": maybe the device is out of range, or has not been connected?");
+            }
+            LOG.info("found characteristic {} at UUID {}/{}", charac, characUuid, serviceUuid);
+
+            return charac;
+        } catch (DBusExecutionException e) {
+            throw new BluetoothException(
+                    String.format("dbus error trying to retrieve characteristic %s/%s on device %s: %s", serviceUuid, characUuid, device.getAddress(), e),
+                    e
+            );
+        }
+    }
+
+    /**
+     * Disconnect all the devices watched, and stop the health check.
+     */
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+
+        for (String key : this.devices.keySet()) {
+            tearDown(this.devices.remove(key));
+        }
+
+        clear();
+
+        synchronized (BluezConnectionManager.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+    }
+
+    /**
+     * What is known of a device watched. Its lock is held while the device is looked up.
+     */
+    private static final class DeviceState {
+        private final String key;
+        private final String adapter;
+        private final String mac;
+        private final Map<String, BluetoothGattCharacteristic> characteristics = new ConcurrentHashMap<>();
+        private volatile BluetoothDevice device;
+        /**
+         * Set once a characteristic of the device has been resolved: the health check then keeps it connected.
+         */
+        private volatile boolean watched;
+        /**
+         * Whether the connection signals of the device are received, and the link as last signaled or probed.
+         */
+        private volatile boolean signaled;
+        private volatile boolean up;
+        /**
+         * Number of users of the device, only updated by the computations of the map of the devices.
+         */
+        private int users;
+
+        private DeviceState(String key, String adapter, String mac) {
+            this.key = key;
+            this.adapter = adapter;
+            this.mac = mac;
+        }
+
+        /**
+         * Forget the device and its characteristics, to look them up again.
+         */
+        private void drop() {
+            this.device = null;
+            this.characteristics.clear();
+            this.up = false;
+        }
+    }
+}
@@ -2,31 +2,30 @@ package ch.sebpiller.iot.bluetooth.bluez;
 
 import ch.sebpiller.iot.bluetooth.BluetoothDelegate;
 import ch.sebpiller.iot.bluetooth.BluetoothException;
-import com.github.hypfvieh.bluetooth.DeviceManager;
+import ch.sebpiller.iot.bluetooth.WriteResult;
 import com.github.hypfvieh.bluetooth.DiscoveryFilter;
 import com.github.hypfvieh.bluetooth.DiscoveryTransport;
 import com.github.hypfvieh.bluetooth.wrapper.BluetoothDevice;
 import com.github.hypfvieh.bluetooth.wrapper.BluetoothGattCharacteristic;
-import com.github.hypfvieh.bluetooth.wrapper.BluetoothGattService;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.Validate;
-import org.apache.commons.lang3.builder.ToStringBuilder;
-import org.bluez.exceptions.BluezFailedException;
-import org.bluez.exceptions.BluezInvalidArgumentsException;
-import org.bluez.exceptions.BluezNotReadyException;
-import org.bluez.exceptions.BluezNotSupportedException;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.exceptions.DBusExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Connector for Bluetooth BLE, backed with the API Bluez.
+ * Connector for Bluetooth BLE, backed with the API Bluez. The lookup of the device and its connection are handled by a
+ * {@link BluezConnectionManager}, shared by default.
  */
 public final class BluezDelegate implements BluetoothDelegate {
     private static final Logger LOG = LoggerFactory.getLogger(BluezDelegate.class);
@@ -36,107 +35,180 @@ public final class BluezDelegate implements BluetoothDelegate {
     private final UUID serviceUuid;
     private final UUID characUuid;
 
-    private BluetoothDevice device;
-
     /**
-     * The Bluetooth endpoint to invoke to control the lamp.
+     * BlueZ options of a write without response.
      */
-    private BluetoothGattCharacteristic externalApi;
+    private static final Map<String, Object> WRITE_COMMAND = Collections.singletonMap("type", "command");
+    private static final String FLAG_WRITE_WITHOUT_RESPONSE = "write-without-response";
+
+    private final Map<DiscoveryFilter, Object> filter = new EnumMap<>(DiscoveryFilter.class);
+    private final BluezConnectionManager connections;
+
+    // support of writes without response by the characteristic #flagsOf
+    private volatile BluetoothGattCharacteristic flagsOf;
+    private volatile boolean writeWithoutResponse;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     public BluezDelegate(String btAdapter, String macAddr, UUID serviceUuid, UUID characUuid) {
+        this(btAdapter, macAddr, serviceUuid, characUuid, BluezConnectionManager.getInstance());
+    }
+
+    public BluezDelegate(String btAdapter, String macAddr, UUID serviceUuid, UUID characUuid, BluezConnectionManager connections) {
         this.btAdapter = btAdapter;
         this.macAddr = macAddr;
         this.serviceUuid = serviceUuid;
         this.characUuid = characUuid;
-    }
-
-
-    private final BluetoothGattCharacteristic retrieveCharacteristic(String adapter, String mac, String serviceUuid, String characUuid, Map<DiscoveryFilter, Object> filter) throws BluetoothException {
-        try {
-            BluetoothGattService service = getBluetoothDevice(adapter, mac, filter).getGattServiceByUuid(serviceUuid);
-            if (service == null) {
-                throw new BluetoothException("unable to connect to service " + serviceUuid + ": maybe the device is out of range, or has not been connected?");
-            }
-            LOG.info("found service {} at UUID {}", service, serviceUuid);
+        this.connections = Objects.requireNonNull(connections);
 
-            BluetoothGattCharacteristic charac = service.getGattCharacteristicByUuid(characUuid);
-            if (charac == null) {
-                throw new BluetoothException("unable to connect to characteristic " + characUuid + ": maybe the device is out of range, or has not been connected?");
-            }
-            LOG.info("found characteristic {} at UUID {}/{}", charac, characUuid, serviceUuid);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("  > inner structure: {}", ToStringBuilder.reflectionToString(charac));
-            }
+        this.filter.put(DiscoveryFilter.Transport, DiscoveryTransport.LE);
+        this.filter.put(DiscoveryFilter.UUIDs, new String[]{
+                serviceUuid.toString()
+        });
 
-            return charac;
-        } catch (DBusException | DBusExecutionException e) {
-            throw new BluetoothException(
-                    String.format("dbus error trying to retrieve characteristic %s/%s on device %s@%s: %s", serviceUuid, characUuid, mac, adapter, e),
-                    e
-            );
-        }
+        this.connections.acquire(btAdapter, macAddr);
     }
 
+    /**
+     * @return The Bluetooth endpoint to invoke to control the device, from the cache of the connection manager.
+     */
     private BluetoothGattCharacteristic getExternalApi() {
-        if (this.externalApi == null) {
-            EnumMap<DiscoveryFilter, Object> filter = new EnumMap<>(DiscoveryFilter.class);
-            filter.put(DiscoveryFilter.Transport, DiscoveryTransport.LE);
-            filter.put(DiscoveryFilter.UUIDs, new String[]{
-                    this.serviceUuid.toString()
-            });
-
-            this.externalApi = retrieveCharacteristic(
-                    this.btAdapter,
-                    this.macAddr,
-                    this.serviceUuid.toString(),
-                    this.characUuid.toString(),
-                    filter
-            );
-        }
-
-        return this.externalApi;
-    }
-
-    private BluetoothDevice getBluetoothDevice(String adapter, String mac, Map<DiscoveryFilter, Object> filter) throws BluezInvalidArgumentsException, BluezNotReadyException, BluezNotSupportedException, BluezFailedException {
-        DeviceManager manager = BluetoothHelper.discoverDeviceManager();
-        if (filter != null && !filter.isEmpty()) {
-            manager.setScanFilter(filter);
-        }
-
-        this.device = BluetoothHelper.findDeviceOnAdapter(manager, adapter, mac);
-        if (this.device == null || !this.device.connect()) {
-            throw new BluetoothException("can not connect to device " + mac + "@" + adapter);
-        }
-
-        return this.device;
+        return this.connections.getCharacteristic(this.btAdapter, this.macAddr, this.serviceUuid, this.characUuid, this.filter);
     }
 
     @Override
     public void close() {
-        if (this.device != null) {
-            this.device.disconnect();
+        if (this.closed.compareAndSet(false, true)) {
+            this.connections.release(this.btAdapter, this.macAddr);
         }
     }
 
     @Override
     public void write(byte... bytes) {
+        write(WriteType.REQUEST, bytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A {@link WriteType#COMMAND} falls back to a {@link WriteType#REQUEST} if the characteristic does not support
+     * writes without response.
+     */
+    @Override
+    public void write(WriteType type, byte... bytes) {
         Validate.isTrue(ArrayUtils.isNotEmpty(bytes), "empty command received");
 
         BluetoothGattCharacteristic api = getExternalApi();
-        BluetoothHelper.reconnectIfNeeded(api);
+        this.connections.ensureConnected(this.btAdapter, this.macAddr, api);
+
+        Map<String, Object> options = writeOptions(type, api);
 
         if (LOG.isTraceEnabled()) {
             BluetoothDevice dev = api.getService().getDevice();
-            LOG.trace("sending {} bytes to BlueZ API '{}' ({})",
+            LOG.trace("sending {} bytes to BlueZ API '{}' ({}) {}",
                     bytes.length,
                     dev.getName(),
-                    dev.getAddress()
+                    dev.getAddress(),
+                    options.isEmpty() ? "with response" : "without response"
             );
         }
 
         try {
-            api.writeValue(bytes, Collections.emptyMap());
-        } catch (DBusException e) {
+            api.writeValue(bytes, options);
+        } catch (DBusException | DBusExecutionException e) {
+            this.connections.invalidate(api);
+            throw new BluetoothException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The characteristic is resolved, and the connection checked, once before the first command.
+     */
+    @Override
+    public List<WriteResult> writeBatch(WriteType type, List<byte[]> commands) {
+        Validate.isTrue(commands.stream().allMatch(ArrayUtils::isNotEmpty), "empty command received");
+
+        List<WriteResult> results = new ArrayList<>(commands.size());
+        BluetoothGattCharacteristic api = null;
+        Map<String, Object> options = null;
+        BluetoothException error = null;
+
+        if (!commands.isEmpty()) {
+            try {
+                api = getExternalApi();
+                this.connections.ensureConnected(this.btAdapter, this.macAddr, api);
+                options = writeOptions(type, api);
+            } catch (BluetoothException e) {
+                error = e;
+            }
+        }
+
+        for (byte[] bytes : commands) {
+            if (error != null) {
+                // the first command fails if the characteristic can not be reached
+                results.add(results.isEmpty() ? WriteResult.failed(bytes, error) : WriteResult.skipped(bytes, error));
+                continue;
+            }
+
+            try {
+                api.writeValue(bytes, options);
+                results.add(WriteResult.sent(bytes));
+            } catch (DBusException | DBusExecutionException e) {
+                this.connections.invalidate(api);
+                error = new BluetoothException(e);
+                results.add(WriteResult.failed(bytes, error));
+            }
+        }
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("sent a batch of {} commands to BlueZ API: {}", commands.size(), results);
+        }
+
+        return results;
+    }
+
+    private Map<String, Object> writeOptions(WriteType type, BluetoothGattCharacteristic api) {
+        return type == WriteType.COMMAND && isWriteWithoutResponseSupported(api) ?
+                WRITE_COMMAND :
+                Collections.emptyMap();
+    }
+
+    private boolean isWriteWithoutResponseSupported(BluetoothGattCharacteristic api) {
+        if (api != this.flagsOf) {
+            // flags are read once per characteristic resolved
+            List<String> flags = api.getFlags();
+            this.writeWithoutResponse = flags != null && flags.contains(FLAG_WRITE_WITHOUT_RESPONSE);
+            this.flagsOf = api;
+
+            if (!this.writeWithoutResponse) {
+                LOG.info("characteristic {} does not support writes without response", this.characUuid);
+            }
+        }
+
+        return this.writeWithoutResponse;
+    }
+
+    @Override
+    public boolean isReadSupported() {
+        return true;
+    }
+
+    @Override
+    public byte[] read() {
+        BluetoothGattCharacteristic api = getExternalApi();
+        this.connections.ensureConnected(this.btAdapter, this.macAddr, api);
+
+        try {
+            byte[] value = api.readValue(Collections.emptyMap());
+
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("read {} bytes from BlueZ API", value == null ? 0 : value.length);
+            }
+
+            return value;
+        } catch (DBusException | DBusExecutionException e) {
+            this.connections.invalidate(api);
             throw new BluetoothException(e);
         }
     }
@@ -0,0 +1,9 @@
+package ch.sebpiller.iot.bluetooth.bluez.scan;
+
+/**
+ * Notified when a device connects or disconnects.
+ */
+@FunctionalInterface
+public interface ConnectionHandler {
+    void handle(String adapter, String address, boolean connected);
+}
@@ -0,0 +1,42 @@
+package ch.sebpiller.iot.bluetooth.bluez.scan;
+
+import org.freedesktop.dbus.handlers.AbstractPropertiesChangedHandler;
+import org.freedesktop.dbus.interfaces.Properties;
+import org.freedesktop.dbus.types.Variant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+
+/**
+ * Tracks the "Connected" property of the devices of an adapter. Unlike {@link ScanPropertiesChangedHandler}, the
+ * {@link ConnectionHandler} is called directly from the dbus signal thread: it must be quick.
+ */
+public class ConnectionPropertiesChangedHandler extends AbstractPropertiesChangedHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPropertiesChangedHandler.class);
+    private static final String CONNECTED = "Connected";
+
+    private final String bluetoothAdapter;
+    private final String prefix;
+    private final ConnectionHandler connectionHandler;
+
+    public ConnectionPropertiesChangedHandler(String bluetoothAdapter, ConnectionHandler connectionHandler) {
+        this.bluetoothAdapter = Objects.requireNonNull(bluetoothAdapter);
+        this.prefix = "/org/bluez/" + bluetoothAdapter + "/dev_";
+        this.connectionHandler = Objects.requireNonNull(connectionHandler);
+    }
+
+    @Override
+    public void handle(Properties.PropertiesChanged properties) {
+        String address = ScanPropertiesChangedHandler.deviceAddress(properties, prefix);
+        if (address == null || properties.getPropertiesChanged() == null) {
+            return;
+        }
+
+        Variant<?> connected = properties.getPropertiesChanged().get(CONNECTED);
+        if (connected != null && connected.getValue() instanceof Boolean) {
+            LOG.debug("{} {} connected: {}", bluetoothAdapter, address, connected.getValue());
+            connectionHandler.handle(bluetoothAdapter, address, (Boolean) connected.getValue());
+        }
+    }
+}
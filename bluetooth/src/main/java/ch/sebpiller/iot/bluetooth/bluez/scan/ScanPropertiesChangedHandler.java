@@ -29,15 +29,29 @@ public class ScanPropertiesChangedHandler extends AbstractPropertiesChangedHandl
         scanPropertiesChangedThread.start();
     }
 
-    @Override
-    public void handle(Properties.PropertiesChanged properties) {
-        LOG.trace("  > {} path:{} sig:{} interface:{}", bluetoothAdapter, properties.getPath(), properties.getName(), properties.getInterfaceName());
+    /**
+     * @param prefix The dbus path prefix of the devices of an adapter (eg. "/org/bluez/hci0/dev_").
+     * @return The address of the device whose properties have changed, or null if #properties are not the ones of a
+     * device below #prefix.
+     */
+    static String deviceAddress(Properties.PropertiesChanged properties, String prefix) {
         if (!properties.getPath().startsWith(prefix) || !properties.getInterfaceName().equals(DEVICE_IFNAME)) {
-            return;
+            return null;
         }
 
         String address = properties.getPath().replace(prefix, "").replaceAll("_", ":").trim();
         if (!address.matches("^[0-9a-zA-Z:]+$")) {
+            return null;
+        }
+
+        return address;
+    }
+
+    @Override
+    public void handle(Properties.PropertiesChanged properties) {
+        LOG.trace("  > {} path:{} sig:{} interface:{}", bluetoothAdapter, properties.getPath(), properties.getName(), properties.getInterfaceName());
+        String address = deviceAddress(properties, prefix);
+        if (address == null) {
             return;
         }
 
@@ -0,0 +1,90 @@
+package ch.sebpiller.iot.bluetooth;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AdapterRegistryTest {
+    @Test
+    void testDevicesAreSpreadOverTheAdapters() throws Exception {
+        try (AdapterRegistry registry = new AdapterRegistry("hci0", "hci1")) {
+            for (String mac : Arrays.asList("A", "B", "C")) {
+                registry.register(registry.assign(mac), mac, bytes -> {
+                });
+            }
+            BluetoothDelegate d = registry.register("hci2", "D", bytes -> {
+            });
+
+            assertThat(registry.getGroups()).containsOnlyKeys("hci0", "hci1", "hci2");
+            assertThat(registry.getGroups().get("hci0")).containsExactly("A", "C");
+            assertThat(registry.getGroups().get("hci1")).containsExactly("B");
+            assertThat(registry.assign("C")).isEqualTo("hci0");
+            assertThatThrownBy(() -> registry.register("hci1", "A", bytes -> {
+            })).isInstanceOf(IllegalArgumentException.class);
+
+            d.close();
+            assertThat(registry.getGroups().get("hci2")).isEmpty();
+        }
+    }
+
+    @Test
+    void testDevicesOfAnAdapterAreServedRoundRobin() throws Exception {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch busy = new CountDownLatch(1);
+        List<Thread> callers = new ArrayList<>();
+
+        try (AdapterScheduler scheduler = new AdapterScheduler("hci0")) {
+            callers.add(call(scheduler, "A", () -> {
+                busy.await();
+                order.add("A0");
+            }));
+            for (String id : Arrays.asList("A1", "A2", "A3", "B1")) {
+                callers.add(call(scheduler, id.substring(0, 1), () -> order.add(id)));
+            }
+
+            busy.countDown();
+            for (Thread t : callers) {
+                t.join();
+            }
+        }
+
+        // B is not delayed by all the calls queued for A before it
+        assertThat(order).containsExactly("A0", "A1", "B1", "A2", "A3");
+    }
+
+    @Test
+    void testFailuresAreThrownToTheCaller() {
+        try (AdapterScheduler scheduler = new AdapterScheduler("hci0")) {
+            assertThatThrownBy(() -> scheduler.call("A", () -> {
+                throw new BluetoothException("out of range");
+            })).isInstanceOf(BluetoothException.class).hasMessage("out of range");
+        }
+    }
+
+    private interface Call {
+        void run() throws Exception;
+    }
+
+    /**
+     * Call #call from a new thread, and wait until that thread waits for the scheduler.
+     */
+    private static Thread call(AdapterScheduler scheduler, String device, Call call) throws InterruptedException {
+        Thread t = new Thread(() -> scheduler.call(device, () -> {
+            call.run();
+            return null;
+        }));
+        t.start();
+
+        while (t.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        return t;
+    }
+}
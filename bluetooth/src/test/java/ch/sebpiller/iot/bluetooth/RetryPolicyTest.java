@@ -0,0 +1,66 @@
+package ch.sebpiller.iot.bluetooth;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RetryPolicyTest {
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final RetryPolicy policy = new RetryPolicy()
+            .maxAttempts(2)
+            .backoff(0, 0, TimeUnit.MILLISECONDS)
+            .breaker(2, 1, 10, TimeUnit.SECONDS)
+            .clock(now::get);
+
+    private Object fail() {
+        calls.incrementAndGet();
+        throw new BluetoothException("out of range");
+    }
+
+    @Test
+    void testRetriesUntilSuccess() {
+        assertThat(policy.call(() -> calls.incrementAndGet() < 2 ? fail() : "ok")).isEqualTo("ok");
+        assertThat(calls.get()).isEqualTo(3);
+    }
+
+    @Test
+    void testCircuitOpensAfterFailedCalls() {
+        assertThatThrownBy(() -> policy.call(this::fail)).hasMessageContaining("out of range");
+        assertThatThrownBy(() -> policy.call(this::fail)).hasMessageContaining("out of range");
+        assertThat(calls.get()).isEqualTo(4);
+        assertThat(policy.isOpen()).isTrue();
+
+        // fails fast, without calling the device
+        assertThatThrownBy(() -> policy.call(this::fail)).isInstanceOf(RetryPolicy.CircuitOpenException.class);
+        assertThat(calls.get()).isEqualTo(4);
+
+        // a single trial once the delay has elapsed, then open twice as long
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertThatThrownBy(() -> policy.call(this::fail)).hasMessageContaining("out of range");
+        assertThat(calls.get()).isEqualTo(5);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertThatThrownBy(() -> policy.call(this::fail)).isInstanceOf(RetryPolicy.CircuitOpenException.class);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertThat(policy.call(() -> "back")).isEqualTo("back");
+        assertThat(policy.isOpen()).isFalse();
+    }
+
+    @Test
+    void testOtherExceptionsAreNotRetried() {
+        assertThatThrownBy(() -> policy.call(() -> {
+            calls.incrementAndGet();
+            throw new IllegalArgumentException("bug");
+        })).isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(policy.isOpen()).isFalse();
+    }
+}
@@ -0,0 +1,55 @@
+package ch.sebpiller.iot.bluetooth.bluez;
+
+import com.github.hypfvieh.bluetooth.wrapper.BluetoothAdapter;
+import com.github.hypfvieh.bluetooth.wrapper.BluetoothDevice;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BluezConnectionManagerTest {
+    @Test
+    void testDeviceIsLookedUpOnItsAdapter() {
+        BluetoothDevice onHci0 = device("hci0", "AA:BB");
+        BluetoothDevice onHci1 = device("hci1", "AA:BB");
+        List<BluetoothDevice> known = Arrays.asList(device("hci0", "CC:DD"), onHci0, onHci1);
+
+        assertThat(BluezConnectionManager.findDevice(known, "hci1", "aa:bb")).isSameAs(onHci1);
+        assertThat(BluezConnectionManager.findDevice(known, "hci0", "AA:BB")).isSameAs(onHci0);
+        assertThat(BluezConnectionManager.findDevice(known, "hci2", "AA:BB")).isNull();
+    }
+
+    @Test
+    void testDeviceIsKeptUntilItsLastUserReleasesIt() {
+        try (BluezConnectionManager connections = new BluezConnectionManager(0, TimeUnit.SECONDS)) {
+            connections.acquire("hci0", "AA:BB");
+            connections.acquire("hci0", "aa:bb");
+            assertThat(connections.getUsers("hci0", "AA:BB")).isEqualTo(2);
+
+            connections.release("hci0", "AA:BB");
+            assertThat(connections.getUsers("hci0", "AA:BB")).isEqualTo(1);
+
+            connections.release("hci0", "AA:BB");
+            assertThat(connections.getUsers("hci0", "AA:BB")).isEqualTo(0);
+        }
+    }
+
+    private static BluetoothDevice device(String adapter, String mac) {
+        BluetoothAdapter a = new BluetoothAdapter(null, "/org/bluez/" + adapter, null) {
+            @Override
+            public String getDeviceName() {
+                return adapter;
+            }
+        };
+
+        return new BluetoothDevice(null, a, "/org/bluez/" + adapter + "/dev_" + mac.replace(':', '_'), null) {
+            @Override
+            public String getAddress() {
+                return mac;
+            }
+        };
+    }
+}
@@ -8,8 +8,11 @@ import ch.sebpiller.iot.lamp.luke.roberts.LukeRoberts;
 import ch.sebpiller.iot.lamp.SmartLampFacade;
 
 
+import ch.sebpiller.iot.lamp.sequencer.CompiledSequence;
+import ch.sebpiller.iot.lamp.sequencer.LookAheadSequencePlayer;
 import ch.sebpiller.iot.lamp.sequencer.SmartLampSequence;
 import ch.sebpiller.iot.lamp.sequencer.SmartLampScript;
+import ch.sebpiller.iot.lamp.sequencer.TimingWheel;
 import ch.sebpiller.metronome.Metronome;
 import ch.sebpiller.metronome.MetronomeBuilder;
 import ch.sebpiller.metronome.Tempo;
@@ -250,6 +253,7 @@ public class Cli implements Callable<Integer> {
 
             // if we have a main loop, play it.
             if (!SmartLampSequence.NOOP.equals(loop)) {
+                final CompiledSequence compiled = loop.compile();
                 Tempo source;
 
                 if (this.cliParamTempo == null || this.cliParamTempo <= 0) {
@@ -259,7 +263,10 @@ public class Cli implements Callable<Integer> {
                     source = () -> finalTempo;
                 }
 
-                try (Metronome ticTac = new MetronomeBuilder()
+                // the beats are played ahead of time, without blocking the metronome
+                try (TimingWheel wheel = new TimingWheel();
+                     LookAheadSequencePlayer player = new LookAheadSequencePlayer(compiled, lamp, wheel);
+                     Metronome ticTac = new MetronomeBuilder()
                         .withRhythm(source)
                         .withListener(new Metronome.MetronomeListener() {
                             private int i = 0;
@@ -268,7 +275,7 @@ public class Cli implements Callable<Integer> {
                             public void missedBeats(int count, float bpm) {
                                 this.i += count;
                                 LOG.warn("missed beat {} (measure {})", this.i, (this.i / 4) + 1);
-                                loop.skip(count);
+                                player.missedBeats(count);
                             }
 
                             @Override
@@ -277,8 +284,8 @@ public class Cli implements Callable<Integer> {
                                     LOG.debug("beat {} (measure {})", this.i, (this.i / 4) + 1);
                                 }
 
-                                loop.play(lamp);
                                 this.i++;
+                                player.beat(bpm);
                             }
                         })
                         .build()) {
@@ -327,7 +334,10 @@ public class Cli implements Callable<Integer> {
         lampFConfig = lampFConfig.merge(c);
         // -----
 
-        return new LampFBle(lampFConfig);
+        LampFBle lamp = new LampFBle(lampFConfig);
+        // only send the newest values when the lamp can not keep up with the beat
+        lamp.setCoalescingWrites(true);
+        return lamp;
     }
 
     @Override
@@ -0,0 +1,113 @@
+package ch.sebpiller.iot.lamp.luke.roberts;
+
+import ch.sebpiller.iot.lamp.luke.roberts.LukeRoberts.LampF.Command;
+
+/**
+ * Encodes the commands of a Lamp F without allocating: each kind of command is written into its own buffer, allocated
+ * once with its header already in place. Unlike {@link Command#toByteArray(Byte...)}, no boxing, varargs nor
+ * validation is involved.
+ * <p>
+ * A buffer is overwritten by the next command of the same kind: it must be sent before, and must not be kept by the
+ * receiver. Not thread safe.
+ */
+final class CommandEncoder {
+    private final byte[] brightness = Command.BRIGHTNESS.newBuffer(1);
+    private final byte[] relativeBrightness = Command.RELATIVE_BRIGHTNESS.newBuffer(1);
+    private final byte[] colorTemp = Command.COLOR_TEMP.newBuffer(2);
+    private final byte[] selectScene = Command.SELECT_SCENE.newBuffer(1);
+    private final byte[] queryScene = Command.QUERY_SCENE.newBuffer(0);
+    private final byte[] pingV1 = Command.PING_V1.newBuffer(0);
+    private final byte[] pingV2 = Command.PING_V2.newBuffer(0);
+
+    // IMMEDIATE_LIGHT: flags + duration, followed by the top bulb (4 bytes) and/or the main bulb (3 bytes)
+    private final byte[] topLight = Command.IMMEDIATE_LIGHT.newBuffer(3 + 4);
+    private final byte[] mainLight = Command.IMMEDIATE_LIGHT.newBuffer(3 + 3);
+    private final byte[] fullLight = Command.IMMEDIATE_LIGHT.newBuffer(3 + 4 + 3);
+
+    CommandEncoder() {
+        topLight[3] = 0x01;
+        mainLight[3] = 0x02;
+        fullLight[3] = 0x03;
+    }
+
+    byte[] brightness(byte percent) {
+        brightness[3] = percent;
+        return brightness;
+    }
+
+    byte[] relativeBrightness(byte percent) {
+        relativeBrightness[3] = percent;
+        return relativeBrightness;
+    }
+
+    byte[] colorTemperature(int kelvin) {
+        colorTemp[3] = (byte) (kelvin >> 8);
+        colorTemp[4] = (byte) kelvin;
+        return colorTemp;
+    }
+
+    byte[] selectScene(byte sceneId) {
+        selectScene[3] = sceneId;
+        return selectScene;
+    }
+
+    byte[] queryScene() {
+        return queryScene;
+    }
+
+    byte[] pingV1() {
+        return pingV1;
+    }
+
+    byte[] pingV2() {
+        return pingV2;
+    }
+
+    /**
+     * IMMEDIATE_LIGHT changing the top bulb only.
+     *
+     * @param hueOrKelvin Hue, or temperature of the white light when #sat is 0.
+     */
+    byte[] immediateLight(int duration, byte sat, int hueOrKelvin, byte bri) {
+        duration(topLight, duration);
+        top(topLight, sat, hueOrKelvin, bri);
+        return topLight;
+    }
+
+    /**
+     * IMMEDIATE_LIGHT changing the main bulb only.
+     */
+    byte[] immediateLight(int duration, int kelvin, byte bri) {
+        duration(mainLight, duration);
+        main(mainLight, 6, kelvin, bri);
+        return mainLight;
+    }
+
+    /**
+     * IMMEDIATE_LIGHT changing both bulbs.
+     */
+    byte[] immediateLight(int duration, byte sat, int hueOrKelvin, byte bri, int kelvin, byte mbri) {
+        duration(fullLight, duration);
+        top(fullLight, sat, hueOrKelvin, bri);
+        main(fullLight, 10, kelvin, mbri);
+        return fullLight;
+    }
+
+    private static void duration(byte[] buffer, int duration) {
+        buffer[4] = (byte) (duration >> 8);
+        buffer[5] = (byte) duration;
+    }
+
+    private static void top(byte[] buffer, byte sat, int hueOrKelvin, byte bri) {
+        buffer[6] = sat;
+        buffer[7] = (byte) (hueOrKelvin >> 8);
+        buffer[8] = (byte) hueOrKelvin;
+        buffer[9] = bri;
+    }
+
+    private static void main(byte[] buffer, int offset, int kelvin, byte bri) {
+        buffer[offset] = (byte) (kelvin >> 8);
+        buffer[offset + 1] = (byte) kelvin;
+        buffer[offset + 2] = bri;
+    }
+}
@@ -1,24 +1,40 @@
 package ch.sebpiller.iot.lamp.luke.roberts;
 
+import ch.sebpiller.iot.bluetooth.AdapterRegistry;
 import ch.sebpiller.iot.bluetooth.BluetoothDelegate;
 import ch.sebpiller.iot.bluetooth.BluetoothException;
+import ch.sebpiller.iot.bluetooth.RetryPolicy;
+import ch.sebpiller.iot.bluetooth.WriteResult;
 import ch.sebpiller.iot.bluetooth.bluez.BluezDelegate;
+import ch.sebpiller.iot.lamp.ColorHelper;
+import ch.sebpiller.iot.lamp.LampProperty;
+import ch.sebpiller.iot.lamp.LampState;
 import ch.sebpiller.iot.lamp.SmartLampFacade;
 import ch.sebpiller.iot.lamp.impl.AbstractLampBase;
+import ch.sebpiller.iot.lamp.impl.LampRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.awt.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static java.lang.Math.*;
 import static java.lang.String.format;
 
 /**
  * Implementation of a {@link SmartLampFacade} able to drive a "Luke Roberts' model Lamp F".
+ * <p>
+ * The changes made during a {@link #frame(Consumer)} are folded into the fewest possible commands: the top bulb color
+ * and the main bulb temperature/brightness are sent with a single "IMMEDIATE_LIGHT" command when possible.
+ * <p>
+ * Values already applied to the lamp (as per {@link #getState()}) are not sent again. A Lamp F only reports its scene
+ * ({@link #readState()}): the light is unknown until it is set.
  */
 public class LampFBle extends AbstractLampBase {
     private static final Logger LOG = LoggerFactory.getLogger(LampFBle.class);
@@ -34,11 +50,41 @@ public class LampFBle extends AbstractLampBase {
      */
     private static final int MAX_TEMP = 4000;
 
+    /**
+     * Properties changed by the IMMEDIATE_LIGHT commands.
+     */
+    private static final LampProperty[] TOP_LIGHT = {LampProperty.COLOR};
+    private static final LampProperty[] MAIN_LIGHT = {LampProperty.TEMPERATURE, LampProperty.BRIGHTNESS};
+    private static final LampProperty[] LIGHT = {LampProperty.COLOR, LampProperty.TEMPERATURE, LampProperty.BRIGHTNESS};
+    private static final LampProperty[] NO_PROPERTY = {};
+
     private final LukeRoberts.LampF.Config config;
 
-    // values cached by call of #immediateLight
-    private Byte _sat, _bri, _mbri;
-    private Integer _hue, _temp, _mtemp;
+    /**
+     * Retries of the commands sent to this lamp.
+     */
+    private volatile RetryPolicy retryPolicy = new RetryPolicy();
+
+    // reused buffers, guarded by this
+    private final CommandEncoder encoder = new CommandEncoder();
+    private final List<byte[]> batch = new ArrayList<>(2);
+
+    /**
+     * Order of the sends, and the newest send of each property written to the lamp, guarded by this.
+     */
+    private long sendSequence;
+    private final long[] sentSequence = new long[LampProperty.values().length];
+
+    /**
+     * Temperature of the white light shown by the top bulb, if known. Has no equivalent in {@link LampState}, where
+     * such a light is recorded as a grey color.
+     */
+    private Integer topTemperature;
+
+    /**
+     * Changes recorded by the frame opened by the current thread, if any.
+     */
+    private final ThreadLocal<LampFFrame> frame = new ThreadLocal<>();
 
     public LampFBle() {
         this(LukeRoberts.LampF.Config.getDefaultConfig());
@@ -48,12 +94,44 @@ public class LampFBle extends AbstractLampBase {
      * Default bluetooth implementation is BlueZ (does not work under windows !)
      */
     public LampFBle(LukeRoberts.LampF.Config config) {
-        this(new BluezDelegate(
-                config.getLocalBtAdapter(),
+        this(bluezDelegate(config, config.getLocalBtAdapter()), config);
+    }
+
+    /**
+     * A lamp sharing its bluetooth adapter with the other devices of #adapters: its writes take turns with theirs.
+     * Without an adapter configured, the lamp goes to the adapter with the fewest devices.
+     */
+    public LampFBle(LukeRoberts.LampF.Config config, AdapterRegistry adapters) {
+        this(registerOn(adapters, config), config);
+    }
+
+    private static BluetoothDelegate registerOn(AdapterRegistry adapters, LukeRoberts.LampF.Config config) {
+        String adapter = config.getLocalBtAdapter() != null ? config.getLocalBtAdapter() : adapters.assign(config.getMac());
+        return adapters.register(adapter, config.getMac(), bluezDelegate(config, adapter));
+    }
+
+    /**
+     * Sort #lamps into #registry by the adapter they are registered on in #adapters (see
+     * {@link #LampFBle(LukeRoberts.LampF.Config, AdapterRegistry)}): a group per adapter, named after it.
+     *
+     * @return #registry for chaining.
+     */
+    public static LampRegistry groupByAdapter(LampRegistry registry, AdapterRegistry adapters, LampFBle... lamps) {
+        Map<String, LampFBle> byMac = new HashMap<>();
+        for (LampFBle lamp : lamps) {
+            byMac.put(lamp.config.getMac(), lamp);
+        }
+
+        return registry.registerAll(adapters.getGroups(), byMac);
+    }
+
+    private static BluezDelegate bluezDelegate(LukeRoberts.LampF.Config config, String adapter) {
+        return new BluezDelegate(
+                adapter,
                 config.getMac(),
                 UUID.fromString(config.getCustomControlService().getUuid()),
                 UUID.fromString(config.getCustomControlService().getUserExternalApiEndpoint().getUuid())
-        ), config);
+        );
     }
 
     public LampFBle(BluetoothDelegate delegate, LukeRoberts.LampF.Config config) {
@@ -63,19 +141,286 @@ public class LampFBle extends AbstractLampBase {
 
     @Override
     public LampFBle sleep(int millis) {
-        super.sleep(millis);
+        // what has been done before the pause must be visible during the pause
+        commitFrameLight();
+
+        LampFFrame f = this.frame.get();
+        if (f != null && f.prepared) {
+            f.steps.add(() -> super.sleep(millis));
+        } else {
+            super.sleep(millis);
+        }
         return this;
     }
 
-    private void sendCommandToExternalApi(LukeRoberts.LampF.Command command, Byte... parameters) {
-        BluetoothDelegate.retry(() -> {
-            trySendCommandToExternalApi(command, parameters);
+    @Override
+    public LampFBle frame(Consumer<SmartLampFacade> changes) {
+        if (this.frame.get() != null) {
+            // nested frame: merged with the enclosing one
+            changes.accept(this);
+            return this;
+        }
+
+        this.frame.set(new LampFFrame());
+        try {
+            changes.accept(this);
+            commitFrameLight();
+        } finally {
+            this.frame.remove();
+        }
+
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The light changes are folded and encoded here: the commit only writes the bytes, along with the scene and power
+     * changes, in the order #changes made them and with its pauses in between.
+     */
+    @Override
+    public PreparedFrame prepareFrame(Consumer<SmartLampFacade> changes) {
+        if (this.frame.get() != null) {
+            // nested frame: merged with the enclosing one
+            changes.accept(this);
+            return () -> {
+            };
+        }
+
+        LampFFrame f = new LampFFrame();
+        f.prepared = true;
+        this.frame.set(f);
+        try {
+            changes.accept(this);
+            commitFrameLight();
+        } finally {
+            this.frame.remove();
+        }
+
+        List<Runnable> steps = f.steps;
+        return () -> steps.forEach(Runnable::run);
+    }
+
+    /**
+     * Send the light changes recorded so far by the frame of the current thread, if any. The changes of a prepared
+     * frame are encoded now, and sent by its commit.
+     */
+    private void commitFrameLight() {
+        LampFFrame f = this.frame.get();
+
+        if (f != null && !f.isEmpty()) {
+            LampFFrame pending = f.drain();
+            LampProperty[] properties = pending.properties();
+            LampProperty[] supersedes = new LampProperty[properties.length - 1];
+            System.arraycopy(properties, 1, supersedes, 0, supersedes.length);
+
+            if (f.prepared) {
+                List<byte[]> commands = encodeCommands(pending);
+                f.steps.add(() -> write(properties[0], () -> sendBatchToExternalApi(b -> b.addAll(commands), properties), supersedes));
+            } else {
+                write(properties[0], () -> sendFrame(pending), supersedes);
+            }
+        }
+    }
+
+    /**
+     * @return A copy of the commands of {@link #sendFrame(LampFFrame)}.
+     */
+    private synchronized List<byte[]> encodeCommands(LampFFrame f) {
+        encodeFrame(f);
+        List<byte[]> commands = new ArrayList<>(this.batch.size());
+        for (byte[] bytes : this.batch) {
+            commands.add(bytes.clone());
+        }
+        this.batch.clear();
+        return commands;
+    }
+
+    /**
+     * Write #command at once, or when the frame prepared by the current thread is committed.
+     */
+    private void writeInFrame(LampProperty property, Runnable command) {
+        LampFFrame f = this.frame.get();
+
+        if (f != null && f.prepared) {
+            f.steps.add(() -> write(property, command));
+        } else {
+            write(property, command);
+        }
+    }
+
+    /**
+     * Send the changes of a frame with as few commands as possible: top bulb and main bulb changes are merged in a
+     * single IMMEDIATE_LIGHT command when the main bulb temperature and brightness are both known. The commands of the
+     * frame are written in a single batch.
+     */
+    private void sendFrame(LampFFrame f) {
+        sendBatchToExternalApi(b -> encodeFrame(f), f.properties());
+    }
+
+    /**
+     * Encode the commands of {@link #sendFrame(LampFFrame)} into {@link #batch}.
+     */
+    private synchronized void encodeFrame(LampFFrame f) {
+        LampState state = getState();
+        Integer mtemp = f.temperature != null ? f.temperature : state.getTemperature();
+        Byte mbriPercent = f.brightness != null ? f.brightness : state.getBrightness();
+        Byte mbri = mbriPercent == null ? null : Byte.valueOf(percentToByte(mbriPercent));
+        boolean mainChanged = f.temperature != null || f.brightness != null;
+        boolean mergeMain = mainChanged && mtemp != null && mbri != null &&
+                (f.top || (f.temperature != null && f.brightness != null));
+
+        if (f.top || mergeMain) {
+            this.batch.add(encodeImmediateLight(0,
+                    f.hue, f.sat, f.bri, f.topTemp,
+                    mergeMain ? mtemp : null, mergeMain ? mbri : null,
+                    null));
+        }
+
+        if (!mergeMain) {
+            if (f.temperature != null) {
+                this.batch.add(this.encoder.colorTemperature(f.temperature));
+            }
+            if (f.brightness != null) {
+                this.batch.add(this.encoder.brightness(f.brightness));
+            }
+        }
+    }
+
+    private static byte percentToByte(byte percent) {
+        return (byte) round(min(max(0, percent), 100) * 255f / 100f);
+    }
+
+    /**
+     * Run #attempt as per the retry policy. Each attempt holds the lock of this lamp, the backoff between two attempts
+     * does not: the other writes go on meanwhile. An attempt is dropped once a newer send of one of #properties has
+     * been written, so a retry never reverts a newer value.
+     */
+    private void send(Runnable attempt, LampProperty... properties) {
+        long sequence;
+        synchronized (this) {
+            sequence = ++this.sendSequence;
+        }
+
+        this.retryPolicy.call(() -> {
+            synchronized (this) {
+                for (LampProperty p : properties) {
+                    if (this.sentSequence[p.ordinal()] > sequence) {
+                        LOG.debug("send of {} superseded before it could be retried", p);
+                        return null;
+                    }
+                }
+
+                attempt.run();
+
+                for (LampProperty p : properties) {
+                    this.sentSequence[p.ordinal()] = sequence;
+                }
+            }
             return null;
-        }, 3, BluetoothException.class);
+        });
     }
 
-    private void trySendCommandToExternalApi(LukeRoberts.LampF.Command command, Byte[] parameters) {
-        this.bluetoothDelegate.write(command.toByteArray(parameters));
+    /**
+     * Send #command, encoded by #encoding with {@link #encoder} at each attempt.
+     */
+    private void sendToExternalApi(LukeRoberts.LampF.Command command, Supplier<byte[]> encoding, LampProperty... properties) {
+        BluetoothDelegate.WriteType type = writeType(command);
+        send(() -> this.bluetoothDelegate.write(type, encoding.get()), properties);
+    }
+
+    /**
+     * Send light commands back-to-back, added to {@link #batch} by #encoding. When retried, only the commands not sent
+     * yet are sent again, in order.
+     */
+    private void sendBatchToExternalApi(Consumer<List<byte[]>> encoding, LampProperty... properties) {
+        List<byte[]> notSent = new ArrayList<>(0);
+
+        send(() -> {
+            boolean retry = !notSent.isEmpty();
+            if (retry) {
+                this.batch.addAll(notSent);
+                notSent.clear();
+            } else {
+                encoding.accept(this.batch);
+            }
+
+            BluetoothException error = null;
+            try {
+                for (WriteResult r : this.bluetoothDelegate.writeBatch(BluetoothDelegate.WriteType.COMMAND, this.batch)) {
+                    if (!r.isSent()) {
+                        // the buffers of the encoder are reused by the next sends
+                        notSent.add(retry ? r.getBytes() : r.getBytes().clone());
+                        error = error == null ? r.getError() : error;
+                    }
+                }
+            } finally {
+                this.batch.clear();
+            }
+
+            if (error != null) {
+                throw error;
+            }
+        }, properties);
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Change how the commands sent to this lamp are retried. By default, a failed command is retried twice with a
+     * short backoff, and commands fail fast for a while once the lamp looks unreachable.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = Objects.requireNonNull(retryPolicy);
+    }
+
+    /**
+     * Scenes change the whole state of the lamp, and queries expect an answer: they are acknowledged. Light changes
+     * are sent at high rate by effects and fades, where the next command supersedes a lost one: they are not.
+     */
+    private static BluetoothDelegate.WriteType writeType(LukeRoberts.LampF.Command command) {
+        switch (command) {
+            case SELECT_SCENE:
+            case QUERY_SCENE:
+                return BluetoothDelegate.WriteType.REQUEST;
+            default:
+                return BluetoothDelegate.WriteType.COMMAND;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Queries the current scene of the lamp, when the bluetooth implementation can read the answer. The light of a
+     * scene (color, temperature, brightness) can not be queried and remains unknown.
+     */
+    @Override
+    protected LampState readState() {
+        if (!this.bluetoothDelegate.isReadSupported()) {
+            return getState();
+        }
+
+        BluetoothDelegate.WriteType type = writeType(LukeRoberts.LampF.Command.QUERY_SCENE);
+        byte[] answer = this.retryPolicy.call(() -> {
+            // no other command between the query and its answer
+            synchronized (this) {
+                this.bluetoothDelegate.write(type, this.encoder.queryScene());
+                return this.bluetoothDelegate.read();
+            }
+        });
+
+        // answer: status (0 when successful), id of the current scene, then its description
+        if (answer == null || answer.length < 2 || answer[0] != 0) {
+            LOG.debug("unexpected answer to {}, the state of the lamp is unknown", LukeRoberts.LampF.Command.QUERY_SCENE);
+            return LampState.UNKNOWN;
+        }
+
+        byte scene = answer[1];
+        return LampState.UNKNOWN
+                .withPower(scene != LukeRoberts.LampF.Scene.SHUTDOWN_SCENE.getId())
+                .withScene(scene);
     }
 
 
@@ -111,31 +456,70 @@ public class LampFBle extends AbstractLampBase {
 
     @Override
     public LampFBle setScene(byte sceneId) {
-        sendCommandToExternalApi(LukeRoberts.LampF.Command.SELECT_SCENE, sceneId);
-        invalidateCacheFromImmediateLight();
+        // a scene resets the light: changes made before it in the frame are sent first
+        commitFrameLight();
+        updateState(s -> s.withScene(sceneId));
+        writeInFrame(LampProperty.SCENE, () -> sendScene(sceneId));
         return this;
     }
 
+    private void sendScene(byte sceneId) {
+        // a scene changes the whole light
+        sendToExternalApi(LukeRoberts.LampF.Command.SELECT_SCENE, () -> {
+            this.topTemperature = null;
+            return this.encoder.selectScene(sceneId);
+        }, LampProperty.values());
+    }
+
     public LampFBle adjustBrightness(byte percent) {
-        sendCommandToExternalApi(LukeRoberts.LampF.Command.RELATIVE_BRIGHTNESS, percent);
+        updateState(s -> s.withBrightness(null));
+        sendToExternalApi(LukeRoberts.LampF.Command.RELATIVE_BRIGHTNESS, () -> this.encoder.relativeBrightness(percent),
+                LampProperty.BRIGHTNESS);
         return this;
     }
 
     @Override
     public LampFBle setBrightness(byte percent) {
         //Validate.inclusiveBetween(0, 100, percent, "percentage must be in range 0..100");
-        sendCommandToExternalApi(LukeRoberts.LampF.Command.BRIGHTNESS, percent);
+        if (!changeState(LampProperty.BRIGHTNESS, percent)) {
+            return this;
+        }
+
+        LampFFrame f = this.frame.get();
+        if (f != null) {
+            f.brightness = percent;
+        } else {
+            write(LampProperty.BRIGHTNESS, () -> sendBrightness(percent));
+        }
         return this;
     }
 
+    private void sendBrightness(byte percent) {
+        sendToExternalApi(LukeRoberts.LampF.Command.BRIGHTNESS, () -> this.encoder.brightness(percent),
+                LampProperty.BRIGHTNESS);
+    }
+
     @Override
     public LampFBle setTemperature(int kelvin) {
         int k = lampTemp(kelvin);
-        this._mtemp = k;
-        sendCommandToExternalApi(LukeRoberts.LampF.Command.COLOR_TEMP, (byte) (k >> 8), (byte) (k));
+        if (!changeState(LampProperty.TEMPERATURE, k)) {
+            return this;
+        }
+
+        LampFFrame f = this.frame.get();
+        if (f != null) {
+            f.temperature = k;
+        } else {
+            write(LampProperty.TEMPERATURE, () -> sendTemperature(k));
+        }
         return this;
     }
 
+    private void sendTemperature(int k) {
+        sendToExternalApi(LukeRoberts.LampF.Command.COLOR_TEMP, () -> this.encoder.colorTemperature(k),
+                LampProperty.TEMPERATURE);
+    }
+
     /**
      * Range the given kelvin to acceptable lamp temperature.
      */
@@ -145,10 +529,12 @@ public class LampFBle extends AbstractLampBase {
 
     @Override
     public LampFBle power(boolean on) {
-        selectScene(on ?
+        LukeRoberts.LampF.Scene scene = on ?
                 LukeRoberts.LampF.Scene.DEFAULT_SCENE :
-                LukeRoberts.LampF.Scene.SHUTDOWN_SCENE
-        );
+                LukeRoberts.LampF.Scene.SHUTDOWN_SCENE;
+        commitFrameLight();
+        updateState(s -> s.withPower(on).withScene(scene.getId()));
+        writeInFrame(LampProperty.POWER, () -> sendScene(scene.getId()));
         return this;
     }
 
@@ -160,39 +546,55 @@ public class LampFBle extends AbstractLampBase {
         int r = min(max(0x00, red), 0xFF);
         int g = min(max(0x00, green), 0xFF);
         int b = min(max(0x00, blue), 0xFF);
+        if (!changeState(LampProperty.COLOR, r << 16 | g << 8 | b)) {
+            return this;
+        }
+
+        int hsb = ColorHelper.rgbToHsb(r, g, b);
+        int hue = hsb >>> 16;
+        byte sat = (byte) (hsb >> 8), bri = (byte) hsb;
 
-        float[] hsb = Color.RGBtoHSB(r, g, b, null);
-        immediateLight(0,
-                round(hsb[0] * 65_535f), (byte) round(hsb[1] * 255f), (byte) round(hsb[2] * 255f), null,
-                null, null);
+        LampFFrame f = this.frame.get();
+        if (f != null) {
+            f.color(hue, sat, bri);
+        } else {
+            write(LampProperty.COLOR, () -> sendImmediateLight(0, hue, sat, bri, null, null, null, null));
+        }
         return this;
     }
 
     public void pingV1() {
-        sendCommandToExternalApi(LukeRoberts.LampF.Command.PING_V1);
+        sendToExternalApi(LukeRoberts.LampF.Command.PING_V1, this.encoder::pingV1);
     }
 
     public void pingV2() {
-        sendCommandToExternalApi(LukeRoberts.LampF.Command.PING_V2);
+        sendToExternalApi(LukeRoberts.LampF.Command.PING_V2, this.encoder::pingV2);
     }
 
     public void setTopTemperature(int kelvin) {
         int k = lampTemp(kelvin);
-        immediateLight(0,
-                null, (byte) 0, null, k,
-                null, null);
+        // keep the brightness of the top bulb, the white light is recorded as a grey of that brightness
+        byte bri = (byte) topHsb(getState());
+        changeState(LampProperty.COLOR, (bri & 0xFF) * 0x010101);
+
+        LampFFrame f = this.frame.get();
+        if (f != null) {
+            f.topTemperature(k, bri);
+        } else {
+            // the top bulb shows either a color or a white temperature: both are the same property
+            write(LampProperty.COLOR, () -> sendImmediateLight(0,
+                    null, (byte) 0, bri, k,
+                    null, null, null));
+        }
     }
 
     /**
-     * Invalidate cached values from the command {@link #immediateLight(int, Integer, Byte, Byte, Integer, Integer, Byte)}.
+     * @return The color of the top bulb in #state, converted to HSB (see {@link ColorHelper#rgbToHsb(int, int, int)}),
+     * white if unknown.
      */
-    private void invalidateCacheFromImmediateLight() {
-        this._sat = null;
-        this._bri = null;
-        this._mbri = null;
-        this._hue = null;
-        this._temp = null;
-        this._mtemp = null;
+    private static int topHsb(LampState state) {
+        Integer c = state.getColor();
+        return c == null ? 0xFF : ColorHelper.rgbToHsb(c >> 16, c >> 8 & 0xFF, c & 0xFF);
     }
 
     /**
@@ -204,14 +606,13 @@ public class LampFBle extends AbstractLampBase {
      * <p>
      * If all values #mtemp and #mbrightness are null, then this call does not change any setting of the main bulb.
      * <p>
-     * NOTE: after creating an instance of {@link LampFBle}, all values are defaulted, even if the lamp actually has
-     * different settings. If is advised to sync internal state with the lamp by calling this method once. Setting the
-     * lamp's scene will reset all values used by this method.
+     * Values left null are taken from {@link #getState()}. When they are unknown (eg. after the selection of a scene),
+     * the top bulb defaults to white and the main bulb to its maximum temperature and brightness.
      * <p>
      * NOTE: users of the API would rather use the methods {@link #setColor(int, int, int)},
      * {@link #setTopTemperature(int)}, etc than this low-level call.
      *
-     * @param duration Duration in seconds to apply this configuration
+     * @param duration Duration in ms during which this configuration is shown, 0 for infinite
      * @param hue      Top bulb HUE value in HSB color space. A null value means no change.
      * @param sat      Top bulb saturation in HSB color space. A null value means no changes.
      * @param bri      Top bulb brightness in HSB color space. A null value means no change.
@@ -224,6 +625,47 @@ public class LampFBle extends AbstractLampBase {
                                Integer hue, Byte sat, Byte bri, Integer temp, // top bulb
                                Integer mtemp, Byte mbri // main bulb
     ) {
+        int[] sent = new int[3];
+        sendImmediateLight(duration, hue, sat, bri, temp, mtemp, mbri, sent);
+
+        updateState(s -> {
+            if (sent[0] >= 0) {
+                s = s.withColor(sent[0]);
+            }
+            if (sent[1] >= 0) {
+                s = s.withTemperature(sent[1]).withBrightness((byte) round(sent[2] * 100f / 255f));
+            }
+            return s;
+        });
+    }
+
+    /**
+     * Sends the command "IMMEDIATE_LIGHT" without recording the values in {@link #getState()}.
+     *
+     * @param sent See {@link #encodeImmediateLight(int, Integer, Byte, Byte, Integer, Integer, Byte, int[])}.
+     */
+    private void sendImmediateLight(int duration,
+                                    Integer hue, Byte sat, Byte bri, Integer temp,
+                                    Integer mtemp, Byte mbri,
+                                    int[] sent) {
+        boolean top = hue != null || sat != null || bri != null || temp != null;
+        boolean main = mtemp != null || mbri != null;
+        LampProperty[] properties = top && main ? LIGHT : top ? TOP_LIGHT : main ? MAIN_LIGHT : NO_PROPERTY;
+
+        sendBatchToExternalApi(b -> b.add(encodeImmediateLight(duration, hue, sat, bri, temp, mtemp, mbri, sent)),
+                properties);
+    }
+
+    /**
+     * Encode the command "IMMEDIATE_LIGHT", filling the missing values from {@link #getState()}.
+     *
+     * @param sent If not null, receives the top bulb color packed as {@code 0xRRGGBB} and the main bulb temperature
+     *             and brightness (0..255) of the command, -1 for the ones that are not changed.
+     */
+    private synchronized byte[] encodeImmediateLight(int duration,
+                                                     Integer hue, Byte sat, Byte bri, Integer temp,
+                                                     Integer mtemp, Byte mbri,
+                                                     int[] sent) {
         /* structure:
          * XX Flags that specify what content is present
          *
@@ -235,69 +677,66 @@ public class LampFBle extends AbstractLampBase {
          * KKKK Kelvin 2700 .. 4000
          * BB Brightness 0 .. 255
          */
-        List<Byte> bytes = new ArrayList<>(12);
-        byte xx = 0x00;
-
-        // set duration
-        bytes.add((byte) (duration >> 8));
-        bytes.add((byte) (duration));
+        int topColor = -1, mainTemp = -1, mainBri = -1;
+        LampState state = getState();
 
         ////////
-        boolean changeTop = false;
-        if (hue != null) {
-            this._hue = hue;
-            changeTop = true;
-        }
-        if (sat != null) {
-            this._sat = sat;
-            changeTop = true;
-        }
-        if (bri != null) {
-            this._bri = bri;
-            changeTop = true;
-        }
-
-        if ((sat == null || sat == 0) && temp != null) {
-            this._temp = lampTemp(temp);
-            changeTop = true;
-        } else {
-            this._temp = null;
-        }
+        boolean changeTop = hue != null || sat != null || bri != null || temp != null;
+        byte s = 0, b = 0;
+        int i = 0;
 
         if (changeTop) {
-            xx |= 0x01;
-
-            // FIXME simplify case where temp has not been defined before and sat is 0
-            int i = this._sat == 0 ?
-                    (this._temp == null ? this._temp = lampTemp(Integer.MAX_VALUE) : this._temp)
-                    : this._hue;
-            bytes.add(this._sat);
-            bytes.add((byte) (i >> 8));
-            bytes.add((byte) (i));
-            bytes.add(this._bri);
+            int known = topHsb(state);
+            int h = hue != null ? hue : known >>> 16;
+            s = sat != null ? sat : (byte) (known >> 8);
+            b = bri != null ? bri : (byte) known;
+
+            if (s == 0) {
+                // white light
+                if (temp != null) {
+                    this.topTemperature = lampTemp(temp);
+                } else if (this.topTemperature == null) {
+                    this.topTemperature = MAX_TEMP;
+                }
+                i = this.topTemperature;
+                topColor = (b & 0xFF) * 0x010101;
+            } else {
+                this.topTemperature = null;
+                i = h;
+                topColor = ColorHelper.hsbToRgb(h << 16 | (s & 0xFF) << 8 | b & 0xFF);
+            }
         }
 
         ////////
-        boolean changeMain = false;
+        boolean changeMain = mtemp != null || mbri != null;
+        int k = 0;
+        byte mb = 0;
 
-        if (mtemp != null) {
-            this._mtemp = lampTemp(mtemp);
-            changeMain = true;
+        if (changeMain) {
+            k = lampTemp(mtemp != null ? mtemp : state.getTemperature() != null ? state.getTemperature() : MAX_TEMP);
+            mb = mbri != null ? mbri : state.getBrightness() != null ? percentToByte(state.getBrightness()) : (byte) 0xFF;
+            mainTemp = k;
+            mainBri = mb & 0xFF;
         }
-        if (mbri != null) {
-            this._mbri = mbri;
-            changeMain = true;
+
+        if (sent != null) {
+            sent[0] = topColor;
+            sent[1] = mainTemp;
+            sent[2] = mainBri;
         }
 
+        if (changeTop && changeMain) {
+            return this.encoder.immediateLight(duration, s, i, b, k, mb);
+        }
         if (changeMain) {
-            xx |= 0x02;
-            bytes.add((byte) (this._mtemp.intValue() >> 8));
-            bytes.add((byte) (this._mtemp.intValue()));
-            bytes.add(this._mbri);
+            return this.encoder.immediateLight(duration, k, mb);
+        }
+        if (changeTop) {
+            return this.encoder.immediateLight(duration, s, i, b);
         }
 
-        bytes.add(0, xx);
-        sendCommandToExternalApi(LukeRoberts.LampF.Command.IMMEDIATE_LIGHT, bytes.toArray(new Byte[bytes.size()]));
+        // nothing to change: flags only
+        return LukeRoberts.LampF.Command.IMMEDIATE_LIGHT.toByteArray((byte) 0, (byte) (duration >> 8), (byte) duration);
     }
 
     @Override
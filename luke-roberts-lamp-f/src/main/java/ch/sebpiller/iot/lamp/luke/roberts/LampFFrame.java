@@ -0,0 +1,95 @@
+package ch.sebpiller.iot.lamp.luke.roberts;
+
+import ch.sebpiller.iot.lamp.LampProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes of the light of a Lamp F recorded during one frame, not yet sent. Only the newest value of each property is
+ * kept, so the frame can be folded into the fewest possible commands when it is committed.
+ */
+final class LampFFrame {
+    /**
+     * True for a frame prepared to be committed later, that can not be sent before.
+     */
+    boolean prepared;
+    /**
+     * Writes of a prepared frame and its pauses, in order, run by its commit.
+     */
+    final List<Runnable> steps = new ArrayList<>(2);
+
+    // top bulb, either a color (hue + sat + bri) or a white temperature (sat = 0 + temp)
+    boolean top;
+    Integer hue;
+    Byte sat, bri;
+    Integer topTemp;
+
+    // main bulb
+    Byte brightness;
+    Integer temperature;
+
+    void color(int hue, byte sat, byte bri) {
+        this.top = true;
+        this.hue = hue;
+        this.sat = sat;
+        this.bri = bri;
+        this.topTemp = null;
+    }
+
+    void topTemperature(int kelvin, byte bri) {
+        this.top = true;
+        this.hue = null;
+        this.sat = 0;
+        this.bri = bri;
+        this.topTemp = kelvin;
+    }
+
+    boolean isEmpty() {
+        return !top && brightness == null && temperature == null;
+    }
+
+    /**
+     * @return The properties whose newest values are carried by this frame.
+     */
+    LampProperty[] properties() {
+        LampProperty[] p = new LampProperty[(top ? 1 : 0) + (temperature != null ? 1 : 0) + (brightness != null ? 1 : 0)];
+        int i = 0;
+
+        if (top) {
+            p[i++] = LampProperty.COLOR;
+        }
+        if (temperature != null) {
+            p[i++] = LampProperty.TEMPERATURE;
+        }
+        if (brightness != null) {
+            p[i] = LampProperty.BRIGHTNESS;
+        }
+
+        return p;
+    }
+
+    /**
+     * A copy of the pending changes, and reset of this frame.
+     */
+    LampFFrame drain() {
+        LampFFrame copy = new LampFFrame();
+        copy.top = top;
+        copy.hue = hue;
+        copy.sat = sat;
+        copy.bri = bri;
+        copy.topTemp = topTemp;
+        copy.brightness = brightness;
+        copy.temperature = temperature;
+
+        top = false;
+        hue = null;
+        sat = null;
+        bri = null;
+        topTemp = null;
+        brightness = null;
+        temperature = null;
+
+        return copy;
+    }
+}
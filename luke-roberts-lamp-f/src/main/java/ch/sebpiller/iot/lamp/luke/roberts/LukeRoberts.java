@@ -77,6 +77,18 @@ public final class LukeRoberts {
                 return new String(hexChars);
             }
 
+            /**
+             * @return A new buffer for this command with #paramCount parameters, the header (prefix, version and
+             * opcode) already written.
+             */
+            byte[] newBuffer(int paramCount) {
+                byte[] bytes = new byte[3 + paramCount];
+                bytes[0] = prefix;
+                bytes[1] = version;
+                bytes[2] = opcode;
+                return bytes;
+            }
+
             /**
              * Builds a byte array to represent the current command in binary form, respecting
              * the Luke Roberts protocol.
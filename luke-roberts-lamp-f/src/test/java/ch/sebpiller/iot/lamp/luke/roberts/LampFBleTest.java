@@ -0,0 +1,211 @@
+package ch.sebpiller.iot.lamp.luke.roberts;
+
+import ch.sebpiller.iot.bluetooth.BluetoothException;
+import ch.sebpiller.iot.bluetooth.RetryPolicy;
+import ch.sebpiller.iot.lamp.impl.CompositeLampFacade;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests of {@link LampFBle} against a fake bluetooth device recording the commands written.
+ */
+class LampFBleTest {
+    private final List<byte[]> written = new ArrayList<>();
+    private LampFBle lamp;
+
+    @BeforeEach
+    void setUp() {
+        lamp = new LampFBle(bytes -> written.add(bytes.clone()), new LukeRoberts.LampF.Config());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        lamp.close();
+    }
+
+    @Test
+    void testFrameMergesColorAndBrightnessInOneCommand() {
+        lamp.setTemperature(3000);
+        written.clear();
+
+        lamp.frame(f -> f.setColor(0xFF, 0x00, 0x00).setBrightness((byte) 50));
+
+        assertThat(written).hasSize(1);
+        assertThat(written.get(0)).isEqualTo(new byte[]{
+                (byte) 0xA0, 0x01, 0x02, // IMMEDIATE_LIGHT
+                0x03, 0x00, 0x00, // top + main bulb, infinite duration
+                (byte) 0xFF, 0x00, 0x00, (byte) 0xFF, // saturation, hue, brightness
+                0x0B, (byte) 0xB8, (byte) 0x80 // 3000K, 50%
+        });
+    }
+
+    @Test
+    void testFrameMergesMainBulbChanges() {
+        lamp.frame(f -> f.setBrightness((byte) 10).setTemperature(2800));
+
+        assertThat(written).hasSize(1);
+        assertThat(written.get(0)).isEqualTo(new byte[]{
+                (byte) 0xA0, 0x01, 0x02, 0x02, 0x00, 0x00, 0x0A, (byte) 0xF0, 0x1A
+        });
+    }
+
+    @Test
+    void testFrameKeepsNewestValueOnly() {
+        lamp.frame(f -> f.setBrightness((byte) 10).setBrightness((byte) 20).setBrightness((byte) 30));
+
+        assertThat(written).containsExactly(new byte[]{(byte) 0xA0, 0x01, 0x03, 30});
+    }
+
+    @Test
+    void testSleepSplitsFrame() {
+        lamp.frame(f -> f.setBrightness((byte) 100).sleep(1).setBrightness((byte) 0));
+
+        assertThat(written).containsExactly(
+                new byte[]{(byte) 0xA0, 0x01, 0x03, 100},
+                new byte[]{(byte) 0xA0, 0x01, 0x03, 0}
+        );
+    }
+
+    @Test
+    void testFlashOnComposite() throws Exception {
+        List<byte[]> other = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger runs = new AtomicInteger();
+
+        try (LampFBle second = new LampFBle(bytes -> other.add(bytes.clone()), new LukeRoberts.LampF.Config());
+             CompositeLampFacade composite = new CompositeLampFacade(lamp, second)) {
+            // a flash sleeps in the frame: the pauses are made by the commit, the changes run once per lamp
+            composite.frame(f -> {
+                runs.incrementAndGet();
+                f.setBrightness((byte) 100).sleep(30).setBrightness((byte) 0).sleep(30);
+            });
+        }
+
+        assertThat(runs.get()).isEqualTo(2);
+
+        byte[][] flash = {
+                new byte[]{(byte) 0xA0, 0x01, 0x03, 100},
+                new byte[]{(byte) 0xA0, 0x01, 0x03, 0}
+        };
+        assertThat(written).containsExactly(flash);
+        assertThat(other).containsExactly(flash);
+    }
+
+    @Test
+    void testCoalescedFrameIsNotDroppedByALaterWrite() throws Exception {
+        List<byte[]> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch busy = new CountDownLatch(1);
+
+        try (LampFBle coalescing = new LampFBle(bytes -> {
+            if (started.getCount() > 0) {
+                started.countDown();
+                try {
+                    busy.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            sent.add(bytes.clone());
+        }, new LukeRoberts.LampF.Config())) {
+            coalescing.setCoalescingWrites(true);
+
+            // the writer is kept busy, so the frame and the color are both pending
+            coalescing.power(true);
+            started.await();
+            coalescing.frame(f -> f.setColor(0xFF, 0x00, 0x00).setBrightness((byte) 50).setTemperature(3000));
+            coalescing.setColor(0x00, 0xFF, 0x00);
+
+            busy.countDown();
+            assertThat(coalescing.flushWrites(1, TimeUnit.SECONDS)).isTrue();
+        }
+
+        // the same changes, written one after the other
+        lamp.power(true);
+        lamp.frame(f -> f.setColor(0xFF, 0x00, 0x00).setBrightness((byte) 50).setTemperature(3000));
+        lamp.setColor(0x00, 0xFF, 0x00);
+
+        assertThat(sent).containsExactly(written.toArray(new byte[0][]));
+    }
+
+    @Test
+    void testUnchangedValuesAreNotWrittenAgain() {
+        lamp.setBrightness((byte) 50).setBrightness((byte) 50);
+        lamp.setScene(LukeRoberts.LampF.Scene.SHINY_SCENE.getId());
+        lamp.setBrightness((byte) 50);
+
+        assertThat(written).containsExactly(
+                new byte[]{(byte) 0xA0, 0x01, 0x03, 50},
+                new byte[]{(byte) 0xA0, 0x02, 0x05, 0x03},
+                // the scene has reset the light
+                new byte[]{(byte) 0xA0, 0x01, 0x03, 50}
+        );
+    }
+
+    @Test
+    void testBackoffDoesNotBlockOtherWrites() throws Exception {
+        List<byte[]> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch failed = new CountDownLatch(1);
+
+        try (LampFBle flaky = flakyLamp(sent, failed)) {
+            Thread t = new Thread(() -> flaky.setBrightness((byte) 50));
+            t.start();
+            failed.await();
+
+            long start = System.nanoTime();
+            flaky.setTemperature(3000);
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(200L);
+
+            t.join();
+        }
+
+        assertThat(sent).containsExactly(
+                new byte[]{(byte) 0xA0, 0x01, 0x04, 0x0B, (byte) 0xB8},
+                new byte[]{(byte) 0xA0, 0x01, 0x03, 50}
+        );
+    }
+
+    @Test
+    void testRetryDoesNotRevertNewerValue() throws Exception {
+        List<byte[]> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch failed = new CountDownLatch(1);
+
+        try (LampFBle flaky = flakyLamp(sent, failed)) {
+            Thread t = new Thread(() -> flaky.setBrightness((byte) 50));
+            t.start();
+            failed.await();
+
+            flaky.setBrightness((byte) 60);
+            t.join();
+        }
+
+        assertThat(sent).containsExactly(new byte[]{(byte) 0xA0, 0x01, 0x03, 60});
+    }
+
+    /**
+     * A lamp whose first brightness command fails, and is retried after 500ms.
+     */
+    private static LampFBle flakyLamp(List<byte[]> sent, CountDownLatch failed) {
+        AtomicBoolean fail = new AtomicBoolean(true);
+        LampFBle flaky = new LampFBle(bytes -> {
+            if (bytes[2] == 0x03 && fail.getAndSet(false)) {
+                failed.countDown();
+                throw new BluetoothException("connection lost");
+            }
+            sent.add(bytes.clone());
+        }, new LukeRoberts.LampF.Config());
+
+        flaky.setRetryPolicy(new RetryPolicy().backoff(500, 500, TimeUnit.MILLISECONDS).jitter(0));
+        return flaky;
+    }
+}
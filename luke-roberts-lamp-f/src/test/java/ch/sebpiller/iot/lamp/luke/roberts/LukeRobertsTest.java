@@ -20,6 +20,22 @@ class LukeRobertsTest {
                 (byte) 0xA0, 0x01, 0x03, (byte) 0xAD});
     }
 
+    @Test
+    void testEncoderMatchesByteArrayConversion() {
+        CommandEncoder encoder = new CommandEncoder();
+
+        assertThat(encoder.brightness((byte) 0xAD)).isEqualTo(LukeRoberts.LampF.Command.BRIGHTNESS.toByteArray((byte) 0xAD));
+        assertThat(encoder.colorTemperature(3000)).isEqualTo(LukeRoberts.LampF.Command.COLOR_TEMP.toByteArray((byte) 0x0B, (byte) 0xB8));
+        assertThat(encoder.selectScene((byte) 3)).isEqualTo(LukeRoberts.LampF.Command.SELECT_SCENE.toByteArray((byte) 3));
+        assertThat(encoder.queryScene()).isEqualTo(LukeRoberts.LampF.Command.QUERY_SCENE.toByteArray());
+        assertThat(encoder.immediateLight(500, (byte) 0xFF, 0x1234, (byte) 0x80, 2700, (byte) 0x40)).isEqualTo(
+                LukeRoberts.LampF.Command.IMMEDIATE_LIGHT.toByteArray((byte) 0x03, (byte) 0x01, (byte) 0xF4,
+                        (byte) 0xFF, (byte) 0x12, (byte) 0x34, (byte) 0x80, (byte) 0x0A, (byte) 0x8C, (byte) 0x40));
+
+        // the buffer is reused
+        assertThat(encoder.brightness((byte) 1)).isSameAs(encoder.brightness((byte) 2));
+    }
+
     @Test
     void testConfigCanBeLoaded() {
         LukeRoberts.LampF.Config defaultConfig = LukeRoberts.LampF.Config.getDefaultConfig();
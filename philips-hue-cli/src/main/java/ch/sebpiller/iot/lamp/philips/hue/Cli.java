@@ -5,8 +5,11 @@ import ch.sebpiller.iot.bluetooth.bluez.BluetoothHelper;
 import ch.sebpiller.iot.bluetooth.bluez.philipps.hue.PhilipsHueBle;
 import ch.sebpiller.iot.lamp.SmartLampFacade;
 import ch.sebpiller.iot.lamp.cli.SmartLampInteractive;
+import ch.sebpiller.iot.lamp.sequencer.CompiledSequence;
+import ch.sebpiller.iot.lamp.sequencer.LookAheadSequencePlayer;
 import ch.sebpiller.iot.lamp.sequencer.SmartLampScript;
 import ch.sebpiller.iot.lamp.sequencer.SmartLampSequence;
+import ch.sebpiller.iot.lamp.sequencer.TimingWheel;
 import ch.sebpiller.metronome.Metronome;
 import ch.sebpiller.metronome.MetronomeBuilder;
 import ch.sebpiller.metronome.Tempo;
@@ -190,6 +193,7 @@ public class Cli implements Callable<Integer> {
 
             // if we have a main loop, play it.
             if (!SmartLampSequence.NOOP.equals(loop)) {
+                final CompiledSequence compiled = loop.compile();
                 Tempo source;
 
                 if (this.cliParamTempo == null || this.cliParamTempo <= 0) {
@@ -199,9 +203,11 @@ public class Cli implements Callable<Integer> {
                     source = () -> finalTempo;
                 }
 
-                try (Metronome ticTac = new MetronomeBuilder()
+                try (TimingWheel wheel = new TimingWheel();
+                     LookAheadSequencePlayer player = new LookAheadSequencePlayer(compiled, lamp, wheel);
+                     Metronome ticTac = new MetronomeBuilder()
                         .withRhythm(source)
-                        .withListener((ticOrTac, b) -> loop.play(lamp))
+                        .withListener((ticOrTac, b) -> player.beat(b))
                         .build()) {
                     if (this.cliParamDuration > 0) {
                         try {
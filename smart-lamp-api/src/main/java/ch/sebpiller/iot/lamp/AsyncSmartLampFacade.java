@@ -0,0 +1,82 @@
+package ch.sebpiller.iot.lamp;
+
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking variant of a {@link SmartLampFacade}: every operation returns immediately, and the returned
+ * {@link CompletionStage} completes once the lamp has been driven (or completes exceptionally if it failed).
+ * <p>
+ * Time-critical callers (eg. a metronome) can fire and forget, and still observe completion and failures.
+ *
+ * @see ch.sebpiller.iot.lamp.impl.AsyncLampAdapter
+ */
+public interface AsyncSmartLampFacade extends AutoCloseable {
+    /**
+     * Run an arbitrary #action against the lamp, in order with the other operations.
+     */
+    CompletionStage<Void> run(Consumer<SmartLampFacade> action);
+
+    /**
+     * @see SmartLampFacade#frame(Consumer)
+     */
+    default CompletionStage<Void> frame(Consumer<SmartLampFacade> changes) {
+        return run(lamp -> lamp.frame(changes));
+    }
+
+    default CompletionStage<Void> power(boolean on) {
+        return run(lamp -> lamp.power(on));
+    }
+
+    default CompletionStage<Void> setBrightness(byte percent) {
+        return run(lamp -> lamp.setBrightness(percent));
+    }
+
+    default CompletionStage<Void> setTemperature(int kelvin) {
+        return run(lamp -> lamp.setTemperature(kelvin));
+    }
+
+    default CompletionStage<Void> setScene(byte scene) {
+        return run(lamp -> lamp.setScene(scene));
+    }
+
+    default CompletionStage<Void> setColor(int red, int green, int blue) {
+        return run(lamp -> lamp.setColor(red, green, blue));
+    }
+
+    /**
+     * The returned stage completes when the fade is over.
+     */
+    CompletionStage<Void> fadeBrightnessFromTo(byte from, byte to, SmartLampFacade.FadeStyle fadeStyle);
+
+    /**
+     * The returned stage completes when the fade is over.
+     */
+    CompletionStage<Void> fadeBrightnessTo(byte percent, SmartLampFacade.FadeStyle fadeStyle);
+
+    /**
+     * The returned stage completes when the fade is over.
+     */
+    CompletionStage<Void> fadeTemperatureFromTo(int from, int to, SmartLampFacade.FadeStyle fadeStyle);
+
+    /**
+     * The returned stage completes when the fade is over.
+     */
+    CompletionStage<Void> fadeTemperatureTo(int kelvin, SmartLampFacade.FadeStyle fadeStyle);
+
+    /**
+     * The returned stage completes when the fade is over.
+     */
+    CompletionStage<Void> fadeColorFromTo(int[] from, int[] to, SmartLampFacade.FadeStyle fadeStyle);
+
+    /**
+     * The returned stage completes when the fade is over.
+     */
+    CompletionStage<Void> fadeColorTo(int[] to, SmartLampFacade.FadeStyle fadeStyle);
+
+    /**
+     * Stop accepting new operations, and wait for the pending ones to complete.
+     */
+    @Override
+    void close();
+}
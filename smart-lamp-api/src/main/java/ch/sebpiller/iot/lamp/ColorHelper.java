@@ -1,6 +1,41 @@
 package ch.sebpiller.iot.lamp;
 
 public class ColorHelper {
+    /**
+     * sRGB component (0..255) to linear light (0..1).
+     */
+    private static final double[] SRGB_TO_LINEAR = new double[256];
+    /**
+     * Linear light quantized in LINEAR_STEPS, to sRGB component (0..255).
+     */
+    private static final int LINEAR_STEPS = 4095;
+    private static final short[] LINEAR_TO_SRGB = new short[LINEAR_STEPS + 1];
+    /**
+     * 16.16 fixed-point factors replacing the divisions of the RGB to HSB conversion, indexed by max (255 / max) and by
+     * max - min (65535 / (6 * delta)).
+     */
+    private static final int[] SAT_FACTOR = new int[256];
+    private static final long[] HUE_FACTOR = new long[256];
+    // D65 white point
+    private static final double XN = 0.95047, ZN = 1.08883;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255d;
+            SRGB_TO_LINEAR[i] = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+
+            if (i > 0) {
+                SAT_FACTOR[i] = (int) Math.round(255 * 65536d / i);
+                HUE_FACTOR[i] = Math.round(65535 * 65536d / (6 * i));
+            }
+        }
+
+        for (int i = 0; i <= LINEAR_STEPS; i++) {
+            double l = i / (double) LINEAR_STEPS;
+            double c = l <= 0.0031308 ? l * 12.92 : 1.055 * Math.pow(l, 1 / 2.4) - 0.055;
+            LINEAR_TO_SRGB[i] = (short) Math.round(c * 255);
+        }
+    }
 
     /**
      * Parses a color either from its name (in english or french) or rgb bytes in hex.
@@ -71,4 +106,159 @@ public class ColorHelper {
         // white by default when everything else has failed.
         return new int[]{0xff, 0xff, 0xff};
     }
+
+    /**
+     * Converts a relative luminance to the lightness perceived by the eye (CIE L*).
+     *
+     * @param luminance in range 0..1
+     * @return The lightness, in range 0..100.
+     */
+    public static double luminanceToLightness(double luminance) {
+        return 116 * labF(luminance) - 16;
+    }
+
+    /**
+     * Converts a perceived lightness (CIE L*) to a relative luminance.
+     *
+     * @param lightness in range 0..100
+     * @return The luminance, in range 0..1.
+     */
+    public static double lightnessToLuminance(double lightness) {
+        if (lightness <= 8) {
+            return lightness * 27 / 24389;
+        }
+
+        double f = (lightness + 16) / 116;
+        return f * f * f;
+    }
+
+    /**
+     * Converts an RGB color to HSB, with fixed-point arithmetic and without allocation (unlike
+     * {@code java.awt.Color.RGBtoHSB}).
+     *
+     * @param r in range 0..255
+     * @param g in range 0..255
+     * @param b in range 0..255
+     * @return The hue (0..65535) in the 16 high bits, then the saturation (0..255) and the brightness (0..255).
+     */
+    public static int rgbToHsb(int r, int g, int b) {
+        int max = Math.max(r, Math.max(g, b));
+        int delta = max - Math.min(r, Math.min(g, b));
+
+        if (delta == 0) {
+            // grey: no hue, no saturation
+            return max;
+        }
+
+        int sector, offset;
+        if (r == max) {
+            sector = 0;
+            offset = g - b;
+        } else if (g == max) {
+            sector = 2;
+            offset = b - r;
+        } else {
+            sector = 4;
+            offset = r - g;
+        }
+
+        long hue = ((sector * delta + offset) * HUE_FACTOR[delta] + 0x8000) >> 16;
+        if (hue < 0) {
+            hue += 65535;
+        }
+        int sat = (delta * SAT_FACTOR[max] + 0x8000) >> 16;
+
+        return (int) hue << 16 | sat << 8 | max;
+    }
+
+    /**
+     * Converts a color packed by {@link #rgbToHsb(int, int, int)} back to RGB, with fixed-point arithmetic.
+     *
+     * @return The color packed as {@code 0xRRGGBB}.
+     */
+    public static int hsbToRgb(int hsb) {
+        int hue = hsb >>> 16, sat = hsb >> 8 & 0xFF, v = hsb & 0xFF;
+
+        if (sat == 0) {
+            return v << 16 | v << 8 | v;
+        }
+
+        int h6 = hue * 6;
+        int sector = h6 / 65535;
+        int fraction = h6 - sector * 65535;
+
+        int p = div255(v * (255 - sat));
+        int q = div255(v * (255 - ((sat * fraction + 0x8000) >> 16)));
+        int t = div255(v * (255 - ((sat * (65535 - fraction) + 0x8000) >> 16)));
+
+        switch (sector) {
+            case 0:
+            case 6:
+                return v << 16 | t << 8 | p;
+            case 1:
+                return q << 16 | v << 8 | p;
+            case 2:
+                return p << 16 | v << 8 | t;
+            case 3:
+                return p << 16 | q << 8 | v;
+            case 4:
+                return t << 16 | p << 8 | v;
+            default:
+                return v << 16 | p << 8 | q;
+        }
+    }
+
+    /**
+     * x / 255 rounded, for x in range 0..65025.
+     */
+    private static int div255(int x) {
+        x += 128;
+        return (x + (x >> 8)) >> 8;
+    }
+
+    /**
+     * Converts an sRGB color to CIELAB (D65), without allocation.
+     *
+     * @param lab Receives L* (0..100), a* and b*.
+     */
+    public static void rgbToLab(int r, int g, int b, double[] lab) {
+        double lr = SRGB_TO_LINEAR[r], lg = SRGB_TO_LINEAR[g], lb = SRGB_TO_LINEAR[b];
+
+        double fx = labF((0.4124564 * lr + 0.3575761 * lg + 0.1804375 * lb) / XN);
+        double fy = labF(0.2126729 * lr + 0.7151522 * lg + 0.0721750 * lb);
+        double fz = labF((0.0193339 * lr + 0.1191920 * lg + 0.9503041 * lb) / ZN);
+
+        lab[0] = 116 * fy - 16;
+        lab[1] = 500 * (fx - fy);
+        lab[2] = 200 * (fy - fz);
+    }
+
+    /**
+     * Converts a CIELAB (D65) color to sRGB, clipping the colors out of the sRGB gamut.
+     *
+     * @return The color packed as {@code 0xRRGGBB}.
+     */
+    public static int labToRgb(double l, double a, double b) {
+        double fy = (l + 16) / 116;
+        double x = XN * labFInverse(fy + a / 500);
+        double y = labFInverse(fy);
+        double z = ZN * labFInverse(fy - b / 200);
+
+        return linearToSrgb(3.2404542 * x - 1.5371385 * y - 0.4985314 * z) << 16
+                | linearToSrgb(-0.9692660 * x + 1.8760108 * y + 0.0415560 * z) << 8
+                | linearToSrgb(0.0556434 * x - 0.2040259 * y + 1.0572252 * z);
+    }
+
+    private static double labF(double t) {
+        return t <= 216d / 24389 ? (t * 24389 / 27 + 16) / 116 : Math.cbrt(t);
+    }
+
+    private static double labFInverse(double f) {
+        double f3 = f * f * f;
+        return f3 <= 216d / 24389 ? (116 * f - 16) * 27 / 24389 : f3;
+    }
+
+    private static int linearToSrgb(double linear) {
+        return LINEAR_TO_SRGB[(int) Math.round(Math.min(Math.max(0, linear), 1) * LINEAR_STEPS)];
+    }
 }
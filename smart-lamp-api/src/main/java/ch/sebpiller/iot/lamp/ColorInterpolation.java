@@ -0,0 +1,21 @@
+package ch.sebpiller.iot.lamp;
+
+/**
+ * The color space in which the intermediate colors of a fade are computed.
+ */
+public enum ColorInterpolation {
+    /**
+     * Straight line between the red, green and blue components. Cheap, but goes through dull colors (eg. red to
+     * green passes by a dark yellow).
+     */
+    RGB,
+    /**
+     * Turn around the color wheel along the shortest way, interpolating saturation and brightness linearly: colors
+     * stay vivid.
+     */
+    HSB,
+    /**
+     * Straight line in CIELAB: perceptually even steps of lightness and color.
+     */
+    LAB
+}
@@ -0,0 +1,58 @@
+package ch.sebpiller.iot.lamp;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Common easing curves of a fade: map the elapsed fraction of the duration (0..1) to the fraction of the way done
+ * between the start and target values (0 at start, 1 at the end).
+ * <p>
+ * Any other {@link DoubleUnaryOperator} respecting this contract can be used as a custom curve.
+ */
+public enum Easing implements DoubleUnaryOperator {
+    /**
+     * Constant speed.
+     */
+    LINEAR {
+        @Override
+        public double applyAsDouble(double t) {
+            return t;
+        }
+    },
+    /**
+     * Starts slowly, then accelerates (quadratic).
+     */
+    EASE_IN {
+        @Override
+        public double applyAsDouble(double t) {
+            return t * t;
+        }
+    },
+    /**
+     * Starts fast, then decelerates (quadratic).
+     */
+    EASE_OUT {
+        @Override
+        public double applyAsDouble(double t) {
+            return t * (2 - t);
+        }
+    },
+    /**
+     * Accelerates until half of the duration, then decelerates (quadratic).
+     */
+    EASE_IN_OUT {
+        @Override
+        public double applyAsDouble(double t) {
+            return t < .5 ? 2 * t * t : -1 + (4 - 2 * t) * t;
+        }
+    },
+    /**
+     * Doubles the speed every tenth of the duration: almost nothing happens at the beginning, most of the change is
+     * at the end.
+     */
+    EXPONENTIAL {
+        @Override
+        public double applyAsDouble(double t) {
+            return t <= 0 ? 0 : t >= 1 ? 1 : Math.pow(2, 10 * (t - 1));
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package ch.sebpiller.iot.lamp;
+
+/**
+ * The properties of a lamp that can be changed independently through a {@link SmartLampFacade}.
+ */
+public enum LampProperty {
+    POWER,
+    SCENE,
+    COLOR,
+    TEMPERATURE,
+    BRIGHTNESS;
+}
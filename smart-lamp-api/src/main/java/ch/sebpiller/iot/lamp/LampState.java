@@ -0,0 +1,155 @@
+package ch.sebpiller.iot.lamp;
+
+import java.util.Objects;
+
+/**
+ * Immutable snapshot of the known state of a lamp. A null value means the property is unknown (eg. not yet read from
+ * the device, or reset by the selection of a scene).
+ */
+public final class LampState {
+    /**
+     * Nothing is known about the lamp.
+     */
+    public static final LampState UNKNOWN = new LampState(null, null, null, null, null);
+
+    private final Boolean power;
+    private final Byte scene;
+    private final Integer color;
+    private final Integer temperature;
+    private final Byte brightness;
+
+    private LampState(Boolean power, Byte scene, Integer color, Integer temperature, Byte brightness) {
+        this.power = power;
+        this.scene = scene;
+        this.color = color;
+        this.temperature = temperature;
+        this.brightness = brightness;
+    }
+
+    public Boolean getPower() {
+        return power;
+    }
+
+    public Byte getScene() {
+        return scene;
+    }
+
+    /**
+     * @return The color, packed as {@code 0xRRGGBB}.
+     */
+    public Integer getColor() {
+        return color;
+    }
+
+    /**
+     * @return The temperature in kelvin.
+     */
+    public Integer getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * @return The brightness in percent.
+     */
+    public Byte getBrightness() {
+        return brightness;
+    }
+
+    /**
+     * @return The value of #property as an int (see {@link #with(LampProperty, Integer)}), or null if unknown.
+     */
+    public Integer get(LampProperty property) {
+        switch (property) {
+            case POWER:
+                return power == null ? null : power ? 1 : 0;
+            case SCENE:
+                return scene == null ? null : (int) scene;
+            case COLOR:
+                return color;
+            case TEMPERATURE:
+                return temperature;
+            case BRIGHTNESS:
+                return brightness == null ? null : (int) brightness;
+            default:
+                throw new IllegalArgumentException("unsupported property " + property);
+        }
+    }
+
+    /**
+     * A copy of this state with #property set to #value.
+     *
+     * @param value 1 or 0 for the power, the id of a scene, a color packed as {@code 0xRRGGBB}, a temperature in kelvin,
+     *              a brightness in percent, or null if unknown.
+     */
+    public LampState with(LampProperty property, Integer value) {
+        switch (property) {
+            case POWER:
+                return withPower(value == null ? null : value != 0);
+            case SCENE:
+                return withScene(value == null ? null : value.byteValue());
+            case COLOR:
+                return withColor(value);
+            case TEMPERATURE:
+                return withTemperature(value);
+            case BRIGHTNESS:
+                return withBrightness(value == null ? null : value.byteValue());
+            default:
+                throw new IllegalArgumentException("unsupported property " + property);
+        }
+    }
+
+    public LampState withPower(Boolean power) {
+        return new LampState(power, scene, color, temperature, brightness);
+    }
+
+    /**
+     * A copy of this state with #scene selected. The light of the scene is unknown.
+     */
+    public LampState withScene(Byte scene) {
+        return new LampState(power, scene, null, null, null);
+    }
+
+    public LampState withColor(Integer color) {
+        return new LampState(power, scene, color, temperature, brightness);
+    }
+
+    public LampState withTemperature(Integer temperature) {
+        return new LampState(power, scene, color, temperature, brightness);
+    }
+
+    public LampState withBrightness(Byte brightness) {
+        return new LampState(power, scene, color, temperature, brightness);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        LampState that = (LampState) o;
+        return Objects.equals(power, that.power) &&
+                Objects.equals(scene, that.scene) &&
+                Objects.equals(color, that.color) &&
+                Objects.equals(temperature, that.temperature) &&
+                Objects.equals(brightness, that.brightness);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(power, scene, color, temperature, brightness);
+    }
+
+    @Override
+    public String toString() {
+        return "LampState{" +
+                "power=" + power +
+                ", scene=" + scene +
+                ", color=" + (color == null ? null : String.format("#%06X", color)) +
+                ", temperature=" + temperature +
+                ", brightness=" + brightness +
+                '}';
+    }
+}
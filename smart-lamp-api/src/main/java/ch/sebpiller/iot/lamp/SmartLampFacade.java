@@ -1,6 +1,7 @@
 package ch.sebpiller.iot.lamp;
 
 import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 /**
  * Interface of a controller classes able to drive a Smart Lamp, using any kind of connectivity.
@@ -23,6 +24,32 @@ public interface SmartLampFacade {
         return this;
     }
 
+    /**
+     * Apply all the changes made by #changes as one frame. Implementations able to carry several changes in a single
+     * command may merge them, and send them when #changes returns. By default, changes are applied one after the
+     * other, as they are made.
+     *
+     * @param changes Receives the facade to modify. Must not keep a reference to it.
+     * @return this facade for chaining.
+     */
+    default SmartLampFacade frame(Consumer<SmartLampFacade> changes) {
+        changes.accept(this);
+        return this;
+    }
+
+    /**
+     * Prepare the changes made by #changes as one frame, to be applied later by {@link PreparedFrame#commit()}.
+     * Implementations encode the frame here, so that committing it is as quick as possible: several lamps can then
+     * commit their frames at the same instant. The sleeps of #changes are made by the commit, between the changes. By
+     * default, the whole frame is applied by the commit.
+     *
+     * @param changes Receives the facade to modify. Must not keep a reference to it.
+     * @return The frame to commit, once.
+     */
+    default PreparedFrame prepareFrame(Consumer<SmartLampFacade> changes) {
+        return () -> frame(changes);
+    }
+
     /**
      * Turn the lamp on/off.
      *
@@ -103,6 +130,17 @@ public interface SmartLampFacade {
      */
     SmartLampFacade setColor(int red, int green, int blue);
 
+    /**
+     * A frame prepared by {@link #prepareFrame(Consumer)}, not applied yet.
+     */
+    @FunctionalInterface
+    interface PreparedFrame {
+        /**
+         * Apply the frame to the lamp.
+         */
+        void commit();
+    }
+
     /**
      * Describes the different available styles to fade a value. Implementations are free to interpret the meaning of
      * each value in any way they like.
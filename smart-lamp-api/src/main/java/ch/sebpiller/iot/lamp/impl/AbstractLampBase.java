@@ -1,136 +1,415 @@
 package ch.sebpiller.iot.lamp.impl;
 
+import ch.sebpiller.iot.lamp.ColorInterpolation;
+import ch.sebpiller.iot.lamp.Easing;
+import ch.sebpiller.iot.lamp.LampProperty;
+import ch.sebpiller.iot.lamp.LampState;
 import ch.sebpiller.iot.lamp.SmartLampFacade;
 import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Objects;
 import java.util.concurrent.Future;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntSupplier;
+import java.util.function.UnaryOperator;
 
 /**
  * Abstract Lamp implementation.
  * <p>
  * Implements the threading needed in order to provide "fading" behavior: change the value of the brightness,
- * temperature or color from one value to another.
+ * temperature or color from one value to another. Fades are rendered by a frame-clocked engine: they last a predictable
+ * wall-clock time ({@link #getFadeDurationMillis(FadeStyle)}) and write at most {@link #getFadeFrameRate()} values
+ * per second to the lamp. Fades of different properties run at the same time, and the values of each frame are applied
+ * together through {@link #frame(java.util.function.Consumer)}. A new fade of a property supersedes the one in
+ * progress: the returned future of the old fade is cancelled, and the new one starts from the value reached so far
+ * (for the {@code fadeXxxTo} variants). The progression of fades follows an easing curve
+ * ({@link #setFadeEasing(DoubleUnaryOperator)}), and brightness can be faded in perceived lightness
+ * ({@link #setPerceptualBrightness(boolean)}). Colors can be faded in several color spaces
+ * ({@link #setColorInterpolation(ColorInterpolation)}).
  * <p>
- * IMPLEMENTATION NOTE: at the moment, I'm not able to retrieve the brightness/temperature/color of the lamp on startup.
- * Default values are assumed until the first call to set them. And due to the protocol used by most lamps, no
+ * Optionally, writes to the device can be coalesced ({@link #setCoalescingWrites(boolean)}): the setters return
+ * immediately and a single writer thread sends only the newest value of each property, dropping the stale ones.
+ * <p>
+ * The known state of the lamp is held in an immutable {@link LampState} snapshot ({@link #getState()}). It is read
+ * from the device in the background from the first change on ({@link #syncState()}), updated by every change, and
+ * lets subclasses drop the writes of unchanged values ({@link #changeState(LampProperty, int)}).
+ * <p>
+ * IMPLEMENTATION NOTE: most lamps can not report all of their state (eg. a Lamp F only reports its scene). Default
+ * values are assumed for the fades until the first call to set them. And due to the protocol used by most lamps, no
  * guarantee are made to the fact a value has been correctly applied (eg. Lamp F does not produce any error when you
  * try to apply a temperature of 10'000K).
  * <p>
  * Implements auto-closeable to enable try-with-resource programming idiom.
  */
 public abstract class AbstractLampBase implements SmartLampFacade, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractLampBase.class);
+    private static final ThreadFactory SYNC_THREADS = LampThreads.newThreadFactory("lamp-sync-", new AtomicInteger());
+
     /**
-     * Single threaded executor to run fading behaviors ({@link #fadeBrightnessTo(byte, ch.sebpiller.iot.lamp.SmartLampFacade.FadeStyle)} etc)
+     * Default number of frames per second rendered during a fade.
      */
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
-    // locks to prevent multiple concurrent fading effects of the same property
-    private final Lock tempLock = new ReentrantLock();
-    private final Lock brightLock = new ReentrantLock();
-    private final Lock colorLock = new ReentrantLock();
+    public static final int DEFAULT_FADE_FRAME_RATE = 20;
 
-    // TODO load actual state of the lamp if possible...
     /**
-     * local cache of the last temperature set
+     * Frame-clocked engine to run fading behaviors ({@link #fadeBrightnessTo(byte, ch.sebpiller.iot.lamp.SmartLampFacade.FadeStyle)} etc)
+     */
+    private final FadeEngine fadeEngine = new FadeEngine(this, DEFAULT_FADE_FRAME_RATE);
+    /**
+     * Mailbox of pending writes, null unless coalescing is enabled.
      */
-    private int temperature = 4000;
+    private volatile CoalescingWriter writer;
     /**
-     * local cache of the last brightness set
+     * {@link System#nanoTime()} of the end of the last write sent to the device, 0 if none.
      */
-    private byte brightness = 100;
+    private volatile long lastWriteNanos;
     /**
-     * local cache of the current color. assume white by default
+     * Curve followed by the fades rendered frame by frame.
      */
-    private int[] color = new int[]{0xff, 0xff, 0xff};
+    private volatile DoubleUnaryOperator fadeEasing = Easing.LINEAR;
+    /**
+     * Fade the brightness evenly in perceived lightness rather than in luminance.
+     */
+    private volatile boolean perceptualBrightness;
+    /**
+     * Color space of the color fades.
+     */
+    private volatile ColorInterpolation colorInterpolation = ColorInterpolation.RGB;
 
-    @Override
-    public Future<AbstractLampBase> fadeBrightnessFromTo(byte from, byte to, SmartLampFacade.FadeStyle fadeStyle) {
-        Validate.inclusiveBetween(0, 100, from, "percentage not in range 0..100");
-        Validate.inclusiveBetween(0, 100, to, "percentage not in range 0..100");
+    /**
+     * Values assumed by the fades while the actual ones are unknown.
+     */
+    private static final int DEFAULT_TEMPERATURE = 4000;
+    private static final byte DEFAULT_BRIGHTNESS = 100;
+    private static final int DEFAULT_COLOR = 0xFFFFFF;
+
+    /**
+     * The known state of the lamp.
+     */
+    private final AtomicReference<LampState> state = new AtomicReference<>(LampState.UNKNOWN);
+    private final AtomicBoolean stateSynced = new AtomicBoolean();
+
+    /**
+     * @return A snapshot of the known state of the lamp.
+     */
+    public LampState getState() {
+        return this.state.get();
+    }
+
+    /**
+     * Read the state of the device (see {@link #readState()}), replacing the known state. Blocks until the device
+     * answers. Failures are logged, and leave the state unknown.
+     * <p>
+     * The first change of the lamp starts the same read in the background, without waiting for it: the state stays
+     * unknown until the answer comes, and the values changed meanwhile are kept over the ones read.
+     */
+    public void syncState() {
+        this.stateSynced.set(true);
 
-        Callable<AbstractLampBase> callable = () -> {
-            boolean up = from < to;
-            int inc = up ? 1 : -1, sleep = 0;
-
-            switch (fadeStyle) {
-                case FAST:
-                    inc *= 2;
-                    break;
-                case SLOW:
-                    sleep = 50;
-                    break;
+        LampState read = read();
+        if (read != null) {
+            this.state.set(read);
+        }
+    }
+
+    private void syncStateOnce() {
+        if (this.stateSynced.compareAndSet(false, true)) {
+            SYNC_THREADS.newThread(() -> {
+                LampState before = getState();
+                LampState read = read();
+
+                if (read != null) {
+                    // only fill in the values unknown before the read, and not changed since (in the order of the
+                    // properties, as a scene resets the light)
+                    this.state.updateAndGet(s -> {
+                        LampState merged = LampState.UNKNOWN;
+                        for (LampProperty p : LampProperty.values()) {
+                            boolean known = before.get(p) != null || s.get(p) != null;
+                            merged = merged.with(p, known ? s.get(p) : read.get(p));
+                        }
+                        return merged;
+                    });
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * @return The state read from the device, null if it failed.
+     */
+    private LampState read() {
+        try {
+            LampState read = readState();
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("state synchronized with the device: {}", read);
             }
+            return read;
+        } catch (RuntimeException e) {
+            LOG.warn("unable to read the state of the device: {}", e.toString(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Read the actual state of the device. Returns the known state by default: override it when the device can
+     * report (part of) its state.
+     */
+    protected LampState readState() {
+        return getState();
+    }
+
+    /**
+     * Atomically update the known state of the lamp.
+     *
+     * @return The updated state.
+     */
+    protected final LampState updateState(UnaryOperator<LampState> update) {
+        return this.state.updateAndGet(update);
+    }
+
+    /**
+     * Record that #property is about to be set to #value, unless it is known to already have this value.
+     * <p>
+     * Subclasses call it before writing a value: when it returns {@code false}, the write is redundant and should be
+     * dropped.
+     *
+     * @param value See {@link LampState#with(LampProperty, Integer)}.
+     * @return true if the value has changed, false if the device already has it.
+     */
+    protected final boolean changeState(LampProperty property, int value) {
+        syncStateOnce();
+
+        LampState previous = this.state.getAndUpdate(s -> Objects.equals(s.get(property), value) ? s : s.with(property, value));
+        boolean changed = !Objects.equals(previous.get(property), value);
+
+        if (!changed && LOG.isTraceEnabled()) {
+            LOG.trace("dropped redundant write of {} = {}", property, value);
+        }
+
+        return changed;
+    }
+
+    private byte currentBrightness() {
+        Byte b = getState().getBrightness();
+        return b == null ? DEFAULT_BRIGHTNESS : b;
+    }
+
+    private int currentTemperature() {
+        Integer t = getState().getTemperature();
+        return t == null ? DEFAULT_TEMPERATURE : t;
+    }
+
+    private int currentColor() {
+        Integer c = getState().getColor();
+        return c == null ? DEFAULT_COLOR : c;
+    }
+
+    /**
+     * @return The number of frames per second rendered during a fade.
+     */
+    public int getFadeFrameRate() {
+        return this.fadeEngine.getFrameRate();
+    }
+
+    /**
+     * Changes the number of frames per second rendered during a fade, which is the maximum number of writes per
+     * second sent to the lamp by a fade. Use a value the device can really absorb.
+     *
+     * @param framesPerSecond in range 1..1000
+     */
+    public void setFadeFrameRate(int framesPerSecond) {
+        this.fadeEngine.setFrameRate(framesPerSecond);
+    }
+
+    public DoubleUnaryOperator getFadeEasing() {
+        return this.fadeEasing;
+    }
+
+    /**
+     * Changes the easing curve of the next fades: one of the {@link Easing} or a custom function, mapping the elapsed
+     * fraction of the duration (0..1) to the fraction of the way done between the start and target values (0..1).
+     */
+    public void setFadeEasing(DoubleUnaryOperator easing) {
+        this.fadeEasing = Validate.notNull(easing, "easing can not be null");
+    }
+
+    /**
+     * @return true if brightness fades are spaced evenly in perceived lightness.
+     */
+    public boolean isPerceptualBrightness() {
+        return this.perceptualBrightness;
+    }
+
+    /**
+     * When enabled, the next brightness fades are interpolated in perceived lightness (CIE L*) instead of
+     * percentage of luminance: the steps are equally visible to the eye, instead of being wasted on imperceptible
+     * changes at high brightness and looking steppy at low brightness.
+     */
+    public void setPerceptualBrightness(boolean perceptualBrightness) {
+        this.perceptualBrightness = perceptualBrightness;
+    }
+
+    public ColorInterpolation getColorInterpolation() {
+        return this.colorInterpolation;
+    }
+
+    /**
+     * Changes the color space in which the next color fades compute their intermediate colors.
+     */
+    public void setColorInterpolation(ColorInterpolation colorInterpolation) {
+        this.colorInterpolation = Validate.notNull(colorInterpolation, "color interpolation can not be null");
+    }
+
+    /**
+     * @return true if the writes to the device are coalesced by a writer thread.
+     */
+    public boolean isCoalescingWrites() {
+        return this.writer != null;
+    }
+
+    /**
+     * Enables or disables the coalescing of writes. When enabled, the writes of subclasses (see
+     * {@link #write(LampProperty, Runnable, LampProperty...)}) are sent by a single writer thread, which always sends
+     * the newest pending value of each property and drops the stale ones. This bounds the latency between a change and
+     * its application by the lamp, no matter how fast the values are produced. Errors are logged instead of being
+     * thrown to the caller.
+     */
+    public synchronized void setCoalescingWrites(boolean coalescing) {
+        if (coalescing && this.writer == null) {
+            this.writer = new CoalescingWriter();
+        } else if (!coalescing && this.writer != null) {
+            CoalescingWriter w = this.writer;
+            this.writer = null;
 
-            this.brightLock.lockInterruptibly();
             try {
-                for (byte b = from; up ? b <= to : b >= to; b += inc) {
-                    setBrightness(b);
-                    this.brightness = b;
+                w.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-                    if (sleep > 0) {
-                        sleep(sleep);
+    /**
+     * Blocks until all the pending writes have been sent to the device. Returns immediately if writes are not
+     * coalesced.
+     *
+     * @return false if the timeout elapsed while writes were still pending.
+     */
+    public boolean flushWrites(long timeout, TimeUnit unit) throws InterruptedException {
+        CoalescingWriter w = this.writer;
+        return w == null || w.flush(timeout, unit);
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at which the last write sent to the device ended, 0 if nothing was written
+     * yet. With coalescing writes, this is when the writer thread has sent it, not when it was posted.
+     */
+    public long getLastWriteNanos() {
+        return this.lastWriteNanos;
+    }
+
+    /**
+     * Send #command to the device, which applies the newest value of #property. Runs #command immediately, or posts
+     * it to the writer thread if writes are coalesced. If #command fails, the values of the properties it carries
+     * become unknown.
+     *
+     * @param supersedes Other properties whose values are also carried by #command, making their pending writes
+     *                   obsolete.
+     */
+    protected final void write(LampProperty property, Runnable command, LampProperty... supersedes) {
+        syncStateOnce();
+
+        Runnable guarded = () -> {
+            try {
+                command.run();
+                this.lastWriteNanos = System.nanoTime();
+            } catch (RuntimeException e) {
+                updateState(s -> {
+                    LampState unknown = s.with(property, null);
+                    for (LampProperty p : supersedes) {
+                        unknown = unknown.with(p, null);
                     }
-                }
-            } finally {
-                this.brightLock.unlock();
+                    return unknown;
+                });
+                throw e;
             }
-
-            return AbstractLampBase.this;
         };
 
-        return this.executor.submit(callable);
+        CoalescingWriter w = this.writer;
+        if (w == null) {
+            guarded.run();
+        } else {
+            w.post(property, guarded, supersedes);
+        }
+    }
+
+    private Future<AbstractLampBase> submit(Fade fade) {
+        return this.fadeEngine.submit(fade.easing(this.fadeEasing)).getFuture();
+    }
+
+    /**
+     * The wall-clock duration of a fade in the given style. Subclasses can override it to match the capabilities
+     * of the device.
+     */
+    protected long getFadeDurationMillis(FadeStyle fadeStyle) {
+        switch (fadeStyle) {
+            case FAST:
+                return 750;
+            case SLOW:
+                return 5_000;
+            case NORMAL:
+            default:
+                return 2_000;
+        }
+    }
+
+    @Override
+    public Future<AbstractLampBase> fadeBrightnessFromTo(byte from, byte to, SmartLampFacade.FadeStyle fadeStyle) {
+        Validate.inclusiveBetween(0, 100, from, "percentage not in range 0..100");
+        return fadeBrightness(() -> from, to, fadeStyle);
     }
 
     @Override
     public Future<AbstractLampBase> fadeBrightnessTo(byte percent, SmartLampFacade.FadeStyle fadeStyle) {
-        return fadeBrightnessFromTo(this.brightness, percent, fadeStyle);
+        return fadeBrightness(this::currentBrightness, percent, fadeStyle);
+    }
+
+    private Future<AbstractLampBase> fadeBrightness(IntSupplier from, byte to, SmartLampFacade.FadeStyle fadeStyle) {
+        Validate.inclusiveBetween(0, 100, to, "percentage not in range 0..100");
+
+        long duration = getFadeDurationMillis(fadeStyle);
+        return submit(new Fade.IntFade(this, LampProperty.BRIGHTNESS, duration, from, to, b -> {
+            setBrightness((byte) b);
+            updateState(s -> s.withBrightness((byte) b));
+        }).perceptual(this.perceptualBrightness));
     }
 
     @Override
     public Future<AbstractLampBase> fadeTemperatureTo(int kelvin, FadeStyle fadeStyle) {
-        return fadeTemperatureFromTo(this.temperature, kelvin, fadeStyle);
+        return fadeTemperature(this::currentTemperature, kelvin, fadeStyle);
     }
 
     @Override
     public Future<AbstractLampBase> fadeTemperatureFromTo(int from, int to, FadeStyle fadeStyle) {
         Validate.inclusiveBetween(2000, 4000, from, "temperature not in range 2000..4000");
-        Validate.inclusiveBetween(2000, 4000, to, "temperature not in range 2000..4000");
-
-        Callable<AbstractLampBase> callable = () -> {
-            boolean up = from < to;
-            int inc = up ? 10 : -10, sleep = 0;
-
-            switch (fadeStyle) {
-                case FAST:
-                    inc *= 2;
-                    break;
-                case SLOW:
-                    sleep = 50;
-                    break;
-            }
-
-            this.tempLock.lockInterruptibly();
-            try {
-                for (int b = from; up ? b <= to : b >= to; b += inc) {
-                    setTemperature(b);
-                    this.temperature = b;
-
-                    if (sleep > 0) {
-                        sleep(sleep);
-                    }
-                }
-            } finally {
-                this.tempLock.unlock();
-            }
+        return fadeTemperature(() -> from, to, fadeStyle);
+    }
 
-            return AbstractLampBase.this;
-        };
+    private Future<AbstractLampBase> fadeTemperature(IntSupplier from, int to, FadeStyle fadeStyle) {
+        Validate.inclusiveBetween(2000, 4000, to, "temperature not in range 2000..4000");
 
-        return this.executor.submit(callable);
+        long duration = getFadeDurationMillis(fadeStyle);
+        return submit(new Fade.IntFade(this, LampProperty.TEMPERATURE, duration, from, to, k -> {
+            setTemperature(k);
+            updateState(s -> s.withTemperature(k));
+        }));
     }
 
 
@@ -138,69 +417,49 @@ public abstract class AbstractLampBase implements SmartLampFacade, AutoCloseable
         return Math.min(Math.max(0, i), 255);
     }
 
-    @Override
-    public Future<AbstractLampBase> fadeColorFromTo(int[] f, int[] t, SmartLampFacade.FadeStyle fadeStyle) {
-        String msg = "color must contain 3 integers in range 0..255 representing an RGB value";
-        Validate.isTrue(f != null && f.length == 3, "from " + msg);
-        Validate.isTrue(t != null && t.length == 3, "to " + msg);
-
-        // clone mutable parameters to prevent concurrent modification, and force all values in range 0..255
-        final int[] from = new int[]{range0_255(f[0]), range0_255(f[1]), range0_255(f[2])};
-        final int[] to = new int[]{range0_255(t[0]), range0_255(t[1]), range0_255(t[2])};
-
-        Callable<AbstractLampBase> callable = () -> {
-            int iter = 50, sleep = 0;
-
-            switch (fadeStyle) {
-                case FAST:
-                    iter /= 2;
-                    break;
-                case SLOW:
-                    sleep = 50;
-                    break;
-            }
-
-            this.colorLock.lockInterruptibly();
-            try {
-                int[] actual = new int[3];
-
-                for (int i = 0; i < iter; i++) {
-                    // compute actual color for each component, linear
-                    actual[0] = Math.round(from[0] + (i * (to[0] - from[0]) / (float) iter));
-                    actual[1] = Math.round(from[1] + (i * (to[1] - from[1]) / (float) iter));
-                    actual[2] = Math.round(from[2] + (i * (to[2] - from[2]) / (float) iter));
-                    setColor(actual[0], actual[1], actual[2]);
-
-                    if (sleep > 0) {
-                        sleep(sleep);
-                    }
-                }
+    private static final String COLOR_MSG = "color must contain 3 integers in range 0..255 representing an RGB value";
 
-                setColor(to[0], to[1], to[2]);
-                this.color = to;
-            } finally {
-                this.colorLock.unlock();
-            }
+    /**
+     * Pack an RGB color as 0xRRGGBB, forcing all values in range 0..255.
+     */
+    private int pack(int[] rgb, String name) {
+        Validate.isTrue(rgb != null && rgb.length == 3, name + " " + COLOR_MSG);
+        return range0_255(rgb[0]) << 16 | range0_255(rgb[1]) << 8 | range0_255(rgb[2]);
+    }
 
-            return AbstractLampBase.this;
-        };
+    @Override
+    public Future<AbstractLampBase> fadeColorFromTo(int[] f, int[] to, SmartLampFacade.FadeStyle fadeStyle) {
+        final int from = pack(f, "from");
+        return fadeColor(() -> from, pack(to, "to"), fadeStyle);
+    }
 
-        return this.executor.submit(callable);
+    private Future<AbstractLampBase> fadeColor(IntSupplier from, int to, SmartLampFacade.FadeStyle fadeStyle) {
+        long duration = getFadeDurationMillis(fadeStyle);
+        return submit(new Fade.ColorFade(this, duration, from, to, rgb -> {
+            setColor(rgb[0], rgb[1], rgb[2]);
+            int c = rgb[0] << 16 | rgb[1] << 8 | rgb[2];
+            updateState(s -> s.withColor(c));
+        }).interpolation(this.colorInterpolation));
     }
 
     @Override
     public Future<AbstractLampBase> fadeColorTo(int[] to, FadeStyle fadeStyle) {
-        return fadeColorFromTo(this.color, to, fadeStyle);
+        return fadeColor(this::currentColor, pack(to, "to"), fadeStyle);
     }
 
 
     /**
      * {@inheritDoc}
      * <p>
-     * Stop the executor used to schedule fading effects.
+     * Stop the engine used to render fading effects. Fades not yet completed are cancelled. Pending writes are sent
+     * before the writer thread stops.
      */
     @Override
     public void close() throws Exception {
-        this.executor.shutdownNow();
+        try {
+            this.fadeEngine.close();
+        } finally {
+            setCoalescingWrites(false);
+        }
     }
 }
@@ -0,0 +1,194 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import ch.sebpiller.iot.lamp.AsyncSmartLampFacade;
+import ch.sebpiller.iot.lamp.SmartLampFacade;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Makes any {@link SmartLampFacade} non-blocking.
+ * <p>
+ * The operations are run in order by a single thread dedicated to the device (see {@link LampThreads}), fed by a
+ * bounded queue: when the lamp can not keep up and the queue is full, the operation is not queued and the returned
+ * stage fails immediately with a {@link RejectedExecutionException}, so the caller is never blocked.
+ * <p>
+ * Closing the adapter does not close the wrapped lamp.
+ */
+public class AsyncLampAdapter implements AsyncSmartLampFacade {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncLampAdapter.class);
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    private final SmartLampFacade lamp;
+    private final ThreadPoolExecutor executor;
+
+    public AsyncLampAdapter(SmartLampFacade lamp) {
+        this(lamp, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public AsyncLampAdapter(SmartLampFacade lamp, int queueCapacity) {
+        this.lamp = Validate.notNull(lamp);
+        Validate.isTrue(queueCapacity > 0, "queue capacity must be positive");
+
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                LampThreads.newThreadFactory("lamp-async-", THREAD_COUNT));
+    }
+
+    public SmartLampFacade getLamp() {
+        return lamp;
+    }
+
+    /**
+     * @return The number of operations waiting to be run.
+     */
+    public int getPendingCount() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public CompletionStage<Void> run(Consumer<SmartLampFacade> action) {
+        CompletableFuture<Void> stage = new CompletableFuture<>();
+
+        try {
+            executor.execute(new Operation(action, stage));
+        } catch (RejectedExecutionException e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("operation rejected, {} operations are pending", getPendingCount());
+            }
+            stage.completeExceptionally(e);
+        }
+
+        return stage;
+    }
+
+    @Override
+    public CompletionStage<Void> fadeBrightnessFromTo(byte from, byte to, SmartLampFacade.FadeStyle fadeStyle) {
+        return fade(() -> lamp.fadeBrightnessFromTo(from, to, fadeStyle));
+    }
+
+    @Override
+    public CompletionStage<Void> fadeBrightnessTo(byte percent, SmartLampFacade.FadeStyle fadeStyle) {
+        return fade(() -> lamp.fadeBrightnessTo(percent, fadeStyle));
+    }
+
+    @Override
+    public CompletionStage<Void> fadeTemperatureFromTo(int from, int to, SmartLampFacade.FadeStyle fadeStyle) {
+        return fade(() -> lamp.fadeTemperatureFromTo(from, to, fadeStyle));
+    }
+
+    @Override
+    public CompletionStage<Void> fadeTemperatureTo(int kelvin, SmartLampFacade.FadeStyle fadeStyle) {
+        return fade(() -> lamp.fadeTemperatureTo(kelvin, fadeStyle));
+    }
+
+    @Override
+    public CompletionStage<Void> fadeColorFromTo(int[] from, int[] to, SmartLampFacade.FadeStyle fadeStyle) {
+        return fade(() -> lamp.fadeColorFromTo(from, to, fadeStyle));
+    }
+
+    @Override
+    public CompletionStage<Void> fadeColorTo(int[] to, SmartLampFacade.FadeStyle fadeStyle) {
+        return fade(() -> lamp.fadeColorTo(to, fadeStyle));
+    }
+
+    /**
+     * Start the fade on the device thread, and complete when the fade is over. When the lamp renders its fades
+     * asynchronously (its future is a {@link CompletionStage}), the device thread is released as soon as the fade has
+     * started. Otherwise the device thread waits for the fade to end.
+     */
+    private CompletionStage<Void> fade(Supplier<Future<? extends SmartLampFacade>> starter) {
+        CompletableFuture<Void> stage = new CompletableFuture<>();
+
+        run(l -> {
+            Future<? extends SmartLampFacade> f = starter.get();
+
+            if (f instanceof CompletionStage) {
+                ((CompletionStage<?>) f).whenComplete((x, e) -> {
+                    if (e == null) {
+                        stage.complete(null);
+                    } else {
+                        stage.completeExceptionally(e);
+                    }
+                });
+            } else {
+                try {
+                    f.get();
+                    stage.complete(null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stage.completeExceptionally(e);
+                } catch (ExecutionException e) {
+                    stage.completeExceptionally(e.getCause());
+                }
+            }
+        }).whenComplete((x, e) -> {
+            if (e != null) {
+                stage.completeExceptionally(e);
+            }
+        });
+
+        return stage;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.warn("{} operations still pending on close, dropped", drop(executor.shutdownNow()));
+            }
+        } catch (InterruptedException e) {
+            drop(executor.shutdownNow());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fail the stages of the operations dropped, so that no caller waits for them forever.
+     *
+     * @return The number of operations dropped.
+     */
+    private static int drop(List<Runnable> operations) {
+        for (Runnable r : operations) {
+            ((Operation) r).stage.completeExceptionally(new CancellationException("lamp adapter closed"));
+        }
+        return operations.size();
+    }
+
+    private final class Operation implements Runnable {
+        private final Consumer<SmartLampFacade> action;
+        private final CompletableFuture<Void> stage;
+
+        Operation(Consumer<SmartLampFacade> action, CompletableFuture<Void> stage) {
+            this.action = action;
+            this.stage = stage;
+        }
+
+        @Override
+        public void run() {
+            try {
+                action.accept(lamp);
+                stage.complete(null);
+            } catch (Throwable e) {
+                // whatever the failure, the stage completes: composites wait for it
+                stage.completeExceptionally(e);
+            }
+        }
+    }
+}
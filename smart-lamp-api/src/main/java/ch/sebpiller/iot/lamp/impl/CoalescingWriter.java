@@ -0,0 +1,187 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import ch.sebpiller.iot.lamp.LampProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A "latest value wins" mailbox of writes to a lamp, with one slot per {@link LampProperty}.
+ * <p>
+ * Callers post the command able to apply the newest value of a property, and return immediately. A single writer
+ * thread drains the mailbox: when a property has been changed several times since the last drain, only the newest
+ * command is sent and the stale ones are dropped. Commands of different properties are sent in the order they have
+ * been posted.
+ * <p>
+ * A command carrying several properties (eg. a frame) is pending under each of them: it is only dropped once all of
+ * them have been posted again, a newer command carrying some of them is sent after it.
+ */
+final class CoalescingWriter implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(CoalescingWriter.class);
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final LampProperty[] PROPERTIES = LampProperty.values();
+
+    private final AtomicReferenceArray<PendingWrite> slots = new AtomicReferenceArray<>(PROPERTIES.length);
+    private final AtomicLong sequence = new AtomicLong();
+    /**
+     * Number of writes visible in the slots, incremented once the write has been stored.
+     */
+    private final AtomicLong published = new AtomicLong();
+    // only used by the writer thread
+    private final PendingWrite[] drained = new PendingWrite[PROPERTIES.length];
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    /**
+     * The first writes published, up to this count, have been either sent or dropped.
+     */
+    private long drainedUpTo;
+    /**
+     * Kind of the failures of the last writes, null if the last write succeeded. Only used by the writer thread.
+     */
+    private Class<?> failure;
+
+    CoalescingWriter() {
+        this.thread = LampThreads.newThreadFactory("lamp-writer-", THREAD_COUNT).newThread(this::run);
+        this.thread.start();
+    }
+
+    /**
+     * Post the newest #command for #property, replacing the one pending if any.
+     *
+     * @param supersedes Other properties whose newest value is also carried by #command: it replaces their pending
+     *                   commands too.
+     */
+    void post(LampProperty property, Runnable command, LampProperty... supersedes) {
+        if (!running) {
+            throw new IllegalStateException("writer has been closed");
+        }
+
+        PendingWrite write = new PendingWrite(sequence.incrementAndGet(), command);
+        for (LampProperty s : supersedes) {
+            replace(s, write);
+        }
+        replace(property, write);
+        published.incrementAndGet();
+
+        LockSupport.unpark(thread);
+    }
+
+    private void replace(LampProperty property, PendingWrite write) {
+        PendingWrite stale = slots.getAndSet(property.ordinal(), write);
+        if (stale != null && LOG.isTraceEnabled()) {
+            LOG.trace("write #{} replaced #{} for {}", write.sequence, stale.sequence, property);
+        }
+    }
+
+    /**
+     * Blocks until all the writes posted so far have been sent (or dropped because superseded).
+     *
+     * @return false if the timeout elapsed before.
+     */
+    boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long target = published.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (this) {
+            while (drainedUpTo < target) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+
+    private void run() {
+        while (running) {
+            if (!drain()) {
+                LockSupport.park(this);
+            }
+        }
+
+        // send what is still pending before exiting
+        drain();
+    }
+
+    /**
+     * @return true if at least one write has been sent.
+     */
+    private boolean drain() {
+        long upTo = published.get();
+        int count = 0;
+
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            PendingWrite w = slots.getAndSet(i, null);
+
+            // a write pending under several properties is sent once, from the first slot drained
+            if (w != null && w.claimed.compareAndSet(false, true)) {
+                // insertion sort by sequence number, there is at most one entry per property
+                int j = count++;
+                while (j > 0 && drained[j - 1].sequence > w.sequence) {
+                    drained[j] = drained[j - 1];
+                    j--;
+                }
+                drained[j] = w;
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            send(drained[i]);
+            drained[i] = null;
+        }
+
+        synchronized (this) {
+            drainedUpTo = upTo;
+            notifyAll();
+        }
+
+        return count > 0;
+    }
+
+    private void send(PendingWrite w) {
+        try {
+            w.command.run();
+
+            if (failure != null) {
+                LOG.info("writes to the lamp succeed again");
+                failure = null;
+            }
+        } catch (RuntimeException e) {
+            // an unreachable lamp fails every write (eg. while its circuit breaker is open): log the changes only
+            if (!e.getClass().equals(failure)) {
+                LOG.warn("write to the lamp failed, the next failures of the same kind are only logged at debug level: {}", e.toString());
+                failure = e.getClass();
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("write #{} dropped: {}", w.sequence, e.toString(), e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    private static final class PendingWrite {
+        private final long sequence;
+        private final Runnable command;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private PendingWrite(long sequence, Runnable command) {
+            this.sequence = sequence;
+            this.command = command;
+        }
+    }
+}
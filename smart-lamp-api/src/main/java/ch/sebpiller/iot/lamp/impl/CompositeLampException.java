@@ -0,0 +1,28 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import ch.sebpiller.iot.lamp.SmartLampFacade;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Thrown when a call to a {@link CompositeLampFacade} failed on some of its lamps. The other lamps have run the call.
+ */
+public class CompositeLampException extends RuntimeException {
+    private final transient Map<SmartLampFacade, Throwable> failures;
+
+    CompositeLampException(Map<SmartLampFacade, Throwable> failures, int lampCount) {
+        super(failures.size() + " of " + lampCount + " lamps failed: " + failures.values().iterator().next(),
+                failures.values().iterator().next());
+        this.failures = Collections.unmodifiableMap(failures);
+
+        failures.values().stream().skip(1).forEach(this::addSuppressed);
+    }
+
+    /**
+     * @return The lamps that failed, with their failure.
+     */
+    public Map<SmartLampFacade, Throwable> getFailures() {
+        return failures;
+    }
+}
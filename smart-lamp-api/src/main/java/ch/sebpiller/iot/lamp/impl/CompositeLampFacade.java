@@ -1,101 +1,312 @@
 package ch.sebpiller.iot.lamp.impl;
 
 import ch.sebpiller.iot.lamp.SmartLampFacade;
+import org.apache.commons.lang3.Validate;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
- * Control several lamps at the same time, and asynchronously.
+ * Control several lamps at the same time.
+ * <p>
+ * Each call is sent to all the lamps at once, each lamp running it on its own thread (see {@link AsyncLampAdapter}):
+ * a call takes as long as the slowest lamp, not the sum of all of them, and the calls to a given lamp are still run in
+ * order. The setters return once all the lamps are done, and the fades return a future that completes once all the
+ * fades are over.
+ * <p>
+ * A call failing on some of the lamps does not stop the others: once they are all done, it fails with a
+ * {@link CompositeLampException} listing the lamps that failed.
+ * <p>
+ * The frames are applied in two phases, so the lamps change together: each lamp first prepares its frame (see
+ * {@link SmartLampFacade#prepareFrame(Consumer)}), then all the lamps commit them at once. How far apart the frames
+ * reach the lamps is recorded in {@link #getSkewHistograms()}. A frame that sleeps pauses during the commit, on all
+ * the lamps at once.
+ * <p>
+ * Closing the composite does not close the lamps.
  */
-// FIXME fails at the moment
-public final class CompositeLampFacade implements SmartLampFacade {
-    public final CompletableFuture<CompositeLampFacade> futureMe = new CompletableFuture<CompositeLampFacade>() {
-        @Override
-        public CompositeLampFacade get() {
-            return CompositeLampFacade.this;
-        }
-    };
+public final class CompositeLampFacade implements SmartLampFacade, AutoCloseable {
+    private final List<AsyncLampAdapter> composites;
+    private final Map<SmartLampFacade, SkewHistogram> skews = new LinkedHashMap<>();
 
-    private final List<SmartLampFacade> composites = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Longest wait for a lamp coalescing its writes to send a frame committed, before its skew is ignored.
+     */
+    private static final long FLUSH_TIMEOUT_MILLIS = 1_000;
 
     public CompositeLampFacade(SmartLampFacade... composites) {
-        this.composites.addAll(Arrays.asList(composites));
+        Validate.noNullElements(composites);
+
+        List<AsyncLampAdapter> adapters = new ArrayList<>(composites.length);
+        for (SmartLampFacade lamp : composites) {
+            adapters.add(new AsyncLampAdapter(lamp));
+            skews.put(lamp, new SkewHistogram());
+        }
+        this.composites = Collections.unmodifiableList(adapters);
     }
 
     public static CompositeLampFacade from(SmartLampFacade... composites) {
         return new CompositeLampFacade(composites);
     }
 
+    /**
+     * @return The lamps controlled, in the order given at creation.
+     */
+    public List<SmartLampFacade> getLamps() {
+        List<SmartLampFacade> lamps = new ArrayList<>(composites.size());
+        for (AsyncLampAdapter adapter : composites) {
+            lamps.add(adapter.getLamp());
+        }
+        return lamps;
+    }
+
+    /**
+     * @return For each lamp, the delay between the first write of a frame to one of the lamps and its write to this
+     * lamp. The commit of a lamp coalescing its writes (see {@link AbstractLampBase#setCoalescingWrites(boolean)}) waits for its writer
+     * thread to send the frame, so that the time it reached the device is known.
+     */
+    public Map<SmartLampFacade, SkewHistogram> getSkewHistograms() {
+        return Collections.unmodifiableMap(skews);
+    }
+
+    @Override
+    public CompositeLampFacade frame(Consumer<SmartLampFacade> changes) {
+        int count = composites.size();
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicBoolean aborted = new AtomicBoolean(true);
+        long[] committed = new long[count];
+        List<CompletableFuture<Void>> prepared = new ArrayList<>(count);
+
+        try (FrameScope scope = new FrameScope()) {
+            try {
+                // each lamp prepares the frame on its own thread, then waits for the others
+                for (int i = 0; i < count; i++) {
+                    int index = i;
+                    CompletableFuture<Void> ready = new CompletableFuture<>();
+                    prepared.add(ready);
+                    AsyncLampAdapter adapter = composites.get(i);
+
+                    scope.fork(adapter.getLamp(), adapter.run(lamp -> {
+                        PreparedFrame frame;
+                        try {
+                            frame = lamp.prepareFrame(changes);
+                        } finally {
+                            ready.complete(null);
+                        }
+
+                        try {
+                            gate.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException("interrupted before the commit of the frame", e);
+                        }
+                        if (aborted.get()) {
+                            throw new CancellationException("frame not committed, the other lamps failed to start it");
+                        }
+
+                        long start = System.nanoTime();
+                        frame.commit();
+                        committed[index] = written(lamp, start);
+                    }).whenComplete((x, e) -> ready.complete(null)));
+                }
+
+                // all the frames are ready: commit them at once
+                CompletableFuture.allOf(prepared.toArray(new CompletableFuture[0])).join();
+                aborted.set(false);
+            } finally {
+                // the lamps already waiting are released in any case, to commit or to drop their frame
+                gate.countDown();
+            }
+
+            try {
+                scope.join();
+            } finally {
+                recordSkews(committed);
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * @param start When #lamp started to commit the frame.
+     * @return When the frame committed by #lamp was last written to the device, 0 if nothing was written.
+     */
+    private static long written(SmartLampFacade lamp, long start) {
+        if (!(lamp instanceof AbstractLampBase)) {
+            // the lamp writes the frame before its commit returns
+            return System.nanoTime();
+        }
+
+        AbstractLampBase base = (AbstractLampBase) lamp;
+        try {
+            // a coalesced frame is written later, by the writer thread
+            if (!base.flushWrites(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return 0;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+
+        long written = base.getLastWriteNanos();
+        return written - start >= 0 ? written : 0;
+    }
+
+    private void recordSkews(long[] committed) {
+        long first = Long.MAX_VALUE;
+        for (long c : committed) {
+            if (c != 0) {
+                first = Math.min(first, c);
+            }
+        }
+
+        for (int i = 0; i < committed.length; i++) {
+            if (committed[i] != 0) {
+                skews.get(composites.get(i).getLamp()).record(committed[i] - first, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
     @Override
     public CompositeLampFacade power(boolean on) {
-        composites.parallelStream().forEach((smartLampFacade) -> smartLampFacade.power(on));
+        runOnAll(lamp -> lamp.power(on));
         return this;
     }
 
     @Override
     public CompositeLampFacade setBrightness(byte percent) throws UnsupportedOperationException {
-        composites.parallelStream().forEach((smartLampFacade) -> setBrightness(percent));
+        runOnAll(lamp -> lamp.setBrightness(percent));
         return this;
     }
 
     @Override
     public Future<CompositeLampFacade> fadeBrightnessFromTo(byte from, byte to, FadeStyle fadeStyle) {
-        composites.parallelStream().forEach(smartLampFacade -> smartLampFacade.fadeBrightnessFromTo(from, to, fadeStyle));
-        return futureMe;
+        return all(adapter -> adapter.fadeBrightnessFromTo(from, to, fadeStyle));
     }
 
     @Override
     public Future<CompositeLampFacade> fadeBrightnessTo(byte percent, FadeStyle fadeStyle) {
-        composites.parallelStream().forEach(smartLampFacade -> smartLampFacade.fadeBrightnessTo(percent, fadeStyle));
-        return futureMe;
+        return all(adapter -> adapter.fadeBrightnessTo(percent, fadeStyle));
     }
 
     @Override
     public CompositeLampFacade setTemperature(int kelvin) throws UnsupportedOperationException {
-        composites.parallelStream().forEach(smartLampFacade -> smartLampFacade.setTemperature(kelvin));
+        runOnAll(lamp -> lamp.setTemperature(kelvin));
         return this;
     }
 
     @Override
     public Future<CompositeLampFacade> fadeTemperatureFromTo(int from, int to, FadeStyle fadeStyle) {
-        composites.parallelStream().forEach(smartLampFacade -> smartLampFacade.fadeTemperatureFromTo(from, to, fadeStyle));
-        return futureMe;
+        return all(adapter -> adapter.fadeTemperatureFromTo(from, to, fadeStyle));
     }
 
     @Override
     public Future<CompositeLampFacade> fadeTemperatureTo(int kelvin, FadeStyle fadeStyle) {
-        composites.parallelStream().forEach(smartLampFacade -> smartLampFacade.fadeTemperatureTo(kelvin, fadeStyle));
-        return futureMe;
+        return all(adapter -> adapter.fadeTemperatureTo(kelvin, fadeStyle));
     }
 
     @Override
-    public Future<? extends SmartLampFacade> fadeColorFromTo(int[] from, int[] to, FadeStyle fadeStyle) {
-        composites.parallelStream().forEach(smartLampFacade -> smartLampFacade.fadeColorFromTo(from, to, fadeStyle));
-        return futureMe;
+    public Future<CompositeLampFacade> fadeColorFromTo(int[] from, int[] to, FadeStyle fadeStyle) {
+        return all(adapter -> adapter.fadeColorFromTo(from, to, fadeStyle));
     }
 
     @Override
-    public Future<? extends SmartLampFacade> fadeColorTo(int[] to, FadeStyle fadeStyle) {
-        composites.parallelStream().forEach(smartLampFacade -> smartLampFacade.fadeColorTo(to, fadeStyle));
-        return futureMe;
+    public Future<CompositeLampFacade> fadeColorTo(int[] to, FadeStyle fadeStyle) {
+        return all(adapter -> adapter.fadeColorTo(to, fadeStyle));
     }
 
     @Override
     public CompositeLampFacade setScene(byte scene) throws UnsupportedOperationException {
-        composites.parallelStream().forEach(smartLampFacade -> smartLampFacade.setScene(scene));
+        runOnAll(lamp -> lamp.setScene(scene));
         return this;
     }
 
     @Override
     public CompositeLampFacade setColor(int red, int green, int blue) {
-        composites.parallelStream().forEach(smartLampFacade -> smartLampFacade.setColor(red, green, blue));
+        runOnAll(lamp -> lamp.setColor(red, green, blue));
         return this;
     }
 
+    /**
+     * Run #action on all the lamps at once, and wait for all of them.
+     *
+     * @throws CompositeLampException if #action failed on some lamps.
+     */
+    private void runOnAll(Consumer<SmartLampFacade> action) {
+        await(all(adapter -> adapter.run(action)));
+    }
+
+    private static void await(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the lamps", e);
+        } catch (ExecutionException e) {
+            throw (CompositeLampException) e.getCause();
+        }
+    }
 
+    /**
+     * Start #action on all the lamps at once.
+     *
+     * @return A future completed once #action is done on all the lamps, exceptionally with a
+     * {@link CompositeLampException} if it failed on some of them.
+     */
+    private CompletableFuture<CompositeLampFacade> all(Function<AsyncLampAdapter, CompletionStage<Void>> action) {
+        List<CompletableFuture<Void>> stages = new ArrayList<>(composites.size());
+        for (AsyncLampAdapter adapter : composites) {
+            stages.add(action.apply(adapter).toCompletableFuture());
+        }
+
+        return whenAll(stages);
+    }
+
+    /**
+     * @param stages The stages of each lamp, in the order of the lamps.
+     */
+    private CompletableFuture<CompositeLampFacade> whenAll(List<CompletableFuture<Void>> stages) {
+        CompletableFuture<CompositeLampFacade> result = new CompletableFuture<>();
+
+        CompletableFuture.allOf(stages.toArray(new CompletableFuture[0])).whenComplete((x, e) -> {
+            if (e == null) {
+                result.complete(this);
+                return;
+            }
+
+            Map<SmartLampFacade, Throwable> failures = new LinkedHashMap<>();
+            for (int i = 0; i < stages.size(); i++) {
+                Throwable failure = stages.get(i).handle((v, t) -> t).join();
+                if (failure != null) {
+                    failures.put(composites.get(i).getLamp(),
+                            failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+                }
+            }
+            result.completeExceptionally(new CompositeLampException(failures, composites.size()));
+        });
+
+        return result;
+    }
+
+    /**
+     * Stops the threads dedicated to the lamps, once the calls pending are done.
+     */
+    @Override
+    public void close() {
+        composites.forEach(AsyncLampAdapter::close);
+    }
 }
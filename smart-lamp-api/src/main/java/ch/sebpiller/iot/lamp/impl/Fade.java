@@ -0,0 +1,288 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import ch.sebpiller.iot.lamp.ColorHelper;
+import ch.sebpiller.iot.lamp.ColorInterpolation;
+import ch.sebpiller.iot.lamp.Easing;
+import ch.sebpiller.iot.lamp.LampProperty;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
+/**
+ * A transition of a lamp property from one value to another, over a given duration. Animated by a {@link FadeEngine}.
+ * <p>
+ * The start value is resolved when the fade starts, so a fade started after another one on the same property picks up
+ * from the value reached by the previous one.
+ */
+abstract class Fade {
+    private final CompletableFuture<AbstractLampBase> future = new CompletableFuture<>();
+    private final AbstractLampBase lamp;
+    private final LampProperty property;
+    private final long durationNanos;
+    private DoubleUnaryOperator easing = Easing.LINEAR;
+    private long startNanos;
+    private boolean started;
+
+    Fade(AbstractLampBase lamp, LampProperty property, long durationMillis) {
+        this.lamp = lamp;
+        this.property = property;
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, durationMillis));
+    }
+
+    CompletableFuture<AbstractLampBase> getFuture() {
+        return future;
+    }
+
+    LampProperty getProperty() {
+        return property;
+    }
+
+    /**
+     * Use the given easing curve instead of a linear progression.
+     */
+    Fade easing(DoubleUnaryOperator easing) {
+        this.easing = easing;
+        return this;
+    }
+
+    void start(long nanoTime) {
+        this.startNanos = nanoTime;
+        this.started = true;
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Render the frame at #nanoTime.
+     *
+     * @return true if the fade has reached its target value.
+     */
+    boolean frame(long nanoTime) {
+        long elapsed = nanoTime - startNanos;
+        if (durationNanos <= 0 || elapsed >= durationNanos) {
+            // always land exactly on the target value
+            render(1);
+            return true;
+        }
+
+        // custom curves may overshoot, the values must stay between the start and target values
+        render(Math.min(1, Math.max(0, easing.applyAsDouble(elapsed / (double) durationNanos))));
+        return false;
+    }
+
+    /**
+     * Apply the value corresponding to #progress to the lamp, if it has changed since the last frame.
+     *
+     * @param progress 0 at the start value and 1 at the target value, as given by the easing curve
+     */
+    abstract void render(double progress);
+
+    void complete() {
+        future.complete(lamp);
+    }
+
+    void fail(Throwable t) {
+        future.completeExceptionally(t);
+    }
+
+    /**
+     * Stop this fade where it is (eg. because it has been superseded by a newer fade of the same property).
+     */
+    void cancel() {
+        future.cancel(false);
+    }
+
+    /**
+     * @return true if the fade has completed, failed or been cancelled (possibly by the holder of its future).
+     */
+    boolean isDone() {
+        return future.isDone();
+    }
+
+    static int interpolate(int from, int to, double progress) {
+        return (int) Math.round(from + (to - from) * progress);
+    }
+
+    /**
+     * Fade of a single int value (brightness, temperature, ...).
+     */
+    static final class IntFade extends Fade {
+        private final IntSupplier fromSupplier;
+        private final int to;
+        private final IntConsumer writer;
+        private boolean perceptual;
+        private int from, last;
+        private double fromLightness, toLightness;
+        private boolean written;
+
+        IntFade(AbstractLampBase lamp, LampProperty property, long durationMillis, IntSupplier from, int to, IntConsumer writer) {
+            super(lamp, property, durationMillis);
+            this.fromSupplier = from;
+            this.to = to;
+            this.writer = writer;
+        }
+
+        /**
+         * Interpolate a brightness percentage in perceived lightness (CIE L*) instead of luminance, so each step is
+         * equally visible.
+         */
+        IntFade perceptual(boolean perceptual) {
+            this.perceptual = perceptual;
+            return this;
+        }
+
+        @Override
+        void start(long nanoTime) {
+            super.start(nanoTime);
+            this.from = fromSupplier.getAsInt();
+
+            if (perceptual) {
+                this.fromLightness = ColorHelper.luminanceToLightness(from / 100d);
+                this.toLightness = ColorHelper.luminanceToLightness(to / 100d);
+            }
+        }
+
+        @Override
+        void render(double progress) {
+            int value;
+            if (perceptual) {
+                double lightness = fromLightness + (toLightness - fromLightness) * progress;
+                value = (int) Math.round(ColorHelper.lightnessToLuminance(lightness) * 100);
+            } else {
+                value = interpolate(from, to, progress);
+            }
+
+            if (!written || value != last) {
+                writer.accept(value);
+                last = value;
+                written = true;
+            }
+        }
+    }
+
+    /**
+     * Fade of a color, interpolated in the chosen {@link ColorInterpolation color space}. Rendering a frame does not
+     * allocate.
+     */
+    static final class ColorFade extends Fade {
+        private final IntSupplier fromSupplier;
+        private final int to;
+        private final Consumer<int[]> writer;
+        private final int[] actual = new int[3];
+        private ColorInterpolation interpolation = ColorInterpolation.RGB;
+        private int from;
+        private int last = -1;
+        // start and target in the color space of the interpolation
+        private int fromHue, hueDelta, fromSat, toSat, fromBri, toBri;
+        private final double[] fromLab = new double[3], toLab = new double[3];
+
+        /**
+         * @param from Start color packed as {@code 0xRRGGBB}.
+         * @param to   Target color packed as {@code 0xRRGGBB}.
+         */
+        ColorFade(AbstractLampBase lamp, long durationMillis, IntSupplier from, int to, Consumer<int[]> writer) {
+            super(lamp, LampProperty.COLOR, durationMillis);
+            this.fromSupplier = from;
+            this.to = to;
+            this.writer = writer;
+        }
+
+        ColorFade interpolation(ColorInterpolation interpolation) {
+            this.interpolation = interpolation;
+            return this;
+        }
+
+        @Override
+        void start(long nanoTime) {
+            super.start(nanoTime);
+            this.from = fromSupplier.getAsInt();
+
+            switch (interpolation) {
+                case HSB:
+                    startHsb();
+                    break;
+                case LAB:
+                    ColorHelper.rgbToLab(from >> 16, from >> 8 & 0xFF, from & 0xFF, fromLab);
+                    ColorHelper.rgbToLab(to >> 16, to >> 8 & 0xFF, to & 0xFF, toLab);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void startHsb() {
+            int f = ColorHelper.rgbToHsb(from >> 16, from >> 8 & 0xFF, from & 0xFF);
+            int t = ColorHelper.rgbToHsb(to >> 16, to >> 8 & 0xFF, to & 0xFF);
+            int toHue = t >>> 16;
+            fromHue = f >>> 16;
+            fromSat = f >> 8 & 0xFF;
+            toSat = t >> 8 & 0xFF;
+            fromBri = f & 0xFF;
+            toBri = t & 0xFF;
+
+            // the hue of a grey is meaningless: keep the hue of the other end, and only fade the saturation in
+            if (fromSat == 0) {
+                fromHue = toHue;
+            } else if (toSat == 0) {
+                toHue = fromHue;
+            }
+
+            // turn the shortest way around the color wheel
+            hueDelta = toHue - fromHue;
+            if (hueDelta > 32767) {
+                hueDelta -= 65535;
+            } else if (hueDelta < -32767) {
+                hueDelta += 65535;
+            }
+        }
+
+        @Override
+        void render(double progress) {
+            int rgb;
+
+            switch (interpolation) {
+                case HSB:
+                    int hue = interpolate(fromHue, fromHue + hueDelta, progress);
+                    if (hue < 0) {
+                        hue += 65535;
+                    } else if (hue > 65535) {
+                        hue -= 65535;
+                    }
+                    rgb = ColorHelper.hsbToRgb(hue << 16
+                            | interpolate(fromSat, toSat, progress) << 8
+                            | interpolate(fromBri, toBri, progress));
+                    break;
+                case LAB:
+                    rgb = ColorHelper.labToRgb(
+                            fromLab[0] + (toLab[0] - fromLab[0]) * progress,
+                            fromLab[1] + (toLab[1] - fromLab[1]) * progress,
+                            fromLab[2] + (toLab[2] - fromLab[2]) * progress);
+                    break;
+                default:
+                    rgb = interpolate(from >> 16, to >> 16, progress) << 16
+                            | interpolate(from >> 8 & 0xFF, to >> 8 & 0xFF, progress) << 8
+                            | interpolate(from & 0xFF, to & 0xFF, progress);
+                    break;
+            }
+
+            if (progress >= 1) {
+                // land exactly on the target, whatever the rounding of the conversions
+                rgb = to;
+            }
+
+            if (rgb != last) {
+                actual[0] = rgb >> 16;
+                actual[1] = rgb >> 8 & 0xFF;
+                actual[2] = rgb & 0xFF;
+                writer.accept(actual);
+                last = rgb;
+            }
+        }
+    }
+}
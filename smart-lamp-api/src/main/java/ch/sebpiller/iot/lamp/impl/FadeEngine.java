@@ -0,0 +1,194 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import ch.sebpiller.iot.lamp.LampProperty;
+import ch.sebpiller.iot.lamp.SmartLampFacade;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Frame-clocked animation of lamp properties.
+ * <p>
+ * A single {@link ScheduledExecutorService} ticks at {@link #getFrameRate()} frames per second. At each tick, every
+ * running {@link Fade} computes its value from the time elapsed since it started, and writes it to the lamp only if it
+ * differs from the previous frame. The duration of a fade is thus independent of the latency of the device, and the
+ * number of writes per second is capped by the frame rate.
+ * <p>
+ * There is at most one running fade per property, and fades of different properties run at the same time: the values
+ * they produce during a tick are applied in a single {@link SmartLampFacade#frame(Consumer)}, so the lamp can send them
+ * together. A fade supersedes the fade of the same property not yet completed: it is cancelled, and the new fade starts
+ * from the value it has reached.
+ */
+final class FadeEngine implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(FadeEngine.class);
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final int PROPERTY_COUNT = LampProperty.values().length;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            LampThreads.newThreadFactory("lamp-fade-", THREAD_COUNT));
+    private final SmartLampFacade lamp;
+    /**
+     * The running fade of each property, indexed by ordinal.
+     */
+    private final Fade[] active = new Fade[PROPERTY_COUNT];
+
+    // only used by the ticking thread
+    private final Fade[] rendering = new Fade[PROPERTY_COUNT];
+    private final boolean[] ended = new boolean[PROPERTY_COUNT];
+    private final Consumer<SmartLampFacade> renderer = l -> render();
+    private int renderingCount;
+    private long frameNanos;
+
+    private volatile int frameRate;
+    private ScheduledFuture<?> ticker;
+
+    FadeEngine(SmartLampFacade lamp, int frameRate) {
+        this.lamp = lamp;
+        setFrameRate(frameRate);
+    }
+
+    int getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Change the frame rate. Takes effect when the engine restarts ticking (after it got idle).
+     */
+    void setFrameRate(int frameRate) {
+        if (frameRate < 1 || frameRate > 1_000) {
+            throw new IllegalArgumentException("frame rate must be in range 1..1000");
+        }
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Start a fade at the next tick, alongside the fades of other properties. Cancels the running fade of the same
+     * property.
+     */
+    synchronized <F extends Fade> F submit(F fade) {
+        if (scheduler.isShutdown()) {
+            fade.fail(new IllegalStateException("fade engine has been closed"));
+            return fade;
+        }
+
+        int i = fade.getProperty().ordinal();
+        Fade superseded = active[i];
+        active[i] = fade;
+
+        if (superseded != null) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("fade of {} superseded", superseded.getProperty());
+            }
+            superseded.cancel();
+        }
+
+        if (ticker == null) {
+            long period = TimeUnit.SECONDS.toNanos(1) / frameRate;
+            ticker = scheduler.scheduleAtFixedRate(this::tick, 0, period, TimeUnit.NANOSECONDS);
+        }
+
+        return fade;
+    }
+
+    private void tick() {
+        synchronized (this) {
+            for (int i = 0; i < PROPERTY_COUNT; i++) {
+                Fade fade = active[i];
+
+                if (fade != null && fade.isDone()) {
+                    // cancelled by the holder of its future
+                    active[i] = fade = null;
+                }
+                if (fade != null) {
+                    rendering[renderingCount++] = fade;
+                }
+            }
+
+            if (renderingCount == 0) {
+                // nothing more to animate: stop ticking until the next fade is submitted
+                ticker.cancel(false);
+                ticker = null;
+                return;
+            }
+        }
+
+        frameNanos = System.nanoTime();
+
+        try {
+            lamp.frame(renderer);
+        } catch (RuntimeException e) {
+            LOG.warn("fade frame failed: {}", e.toString(), e);
+
+            for (int k = 0; k < renderingCount; k++) {
+                rendering[k].fail(e);
+                ended[k] = true;
+            }
+        }
+
+        for (int k = 0; k < renderingCount; k++) {
+            Fade fade = rendering[k];
+
+            if (ended[k]) {
+                // completed once the last value has been applied with the frame
+                fade.complete();
+                remove(fade);
+            }
+
+            rendering[k] = null;
+            ended[k] = false;
+        }
+        renderingCount = 0;
+    }
+
+    /**
+     * Render the current frame of all the running fades. Runs inside {@link SmartLampFacade#frame(Consumer)}.
+     */
+    private void render() {
+        for (int k = 0; k < renderingCount; k++) {
+            Fade fade = rendering[k];
+
+            try {
+                if (!fade.isStarted()) {
+                    fade.start(frameNanos);
+                }
+                ended[k] = fade.frame(frameNanos);
+            } catch (RuntimeException e) {
+                LOG.warn("fade of {} failed: {}", fade.getProperty(), e.toString(), e);
+                fade.fail(e);
+                ended[k] = true;
+            }
+        }
+    }
+
+    private synchronized void remove(Fade fade) {
+        int i = fade.getProperty().ordinal();
+
+        // unless it has been superseded meanwhile
+        if (active[i] == fade) {
+            active[i] = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+
+        synchronized (this) {
+            CancellationException e = new CancellationException("fade engine closed");
+
+            for (int i = 0; i < PROPERTY_COUNT; i++) {
+                if (active[i] != null) {
+                    active[i].fail(e);
+                    active[i] = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import ch.sebpiller.iot.lamp.SmartLampFacade;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The work of one frame on several lamps, run in parallel and joined as a whole, the way the structured task scopes of
+ * recent JDKs do: once the scope is closed, no lamp is still applying the frame.
+ * <p>
+ * The work of each lamp is started elsewhere, eg. on the thread of an {@link AsyncLampAdapter} to stay in order with
+ * the other operations of the lamp. A scope is meant to be used by a single thread, in a try-with-resources block.
+ */
+public final class FrameScope implements AutoCloseable {
+    private final List<SmartLampFacade> lamps = new ArrayList<>();
+    private final List<CompletableFuture<Void>> forks = new ArrayList<>();
+    private boolean closed;
+
+    /**
+     * Join the work of #lamp started elsewhere.
+     *
+     * @return #stage as a future.
+     */
+    public CompletableFuture<Void> fork(SmartLampFacade lamp, CompletionStage<Void> stage) {
+        Validate.notNull(lamp);
+        Validate.validState(!closed, "frame scope is closed");
+
+        CompletableFuture<Void> done = stage.toCompletableFuture();
+        lamps.add(lamp);
+        forks.add(done);
+        return done;
+    }
+
+    /**
+     * Wait for all the work forked.
+     *
+     * @throws CompositeLampException if some of the lamps failed.
+     * @throws IllegalStateException  if interrupted while waiting.
+     */
+    public void join() {
+        Map<SmartLampFacade, Throwable> failures = new LinkedHashMap<>();
+
+        for (int i = 0; i < forks.size(); i++) {
+            try {
+                forks.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for the lamps", e);
+            } catch (ExecutionException | CancellationException e) {
+                Throwable failure = e instanceof ExecutionException ? e.getCause() : e;
+                failures.put(lamps.get(i),
+                        failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            throw new CompositeLampException(failures, forks.size());
+        }
+    }
+
+    /**
+     * Wait for all the work forked to end, failed or not. Call {@link #join()} before to learn about the failures.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        boolean interrupted = false;
+        for (CompletableFuture<Void> f : forks) {
+            while (true) {
+                try {
+                    f.handle((x, e) -> null).get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
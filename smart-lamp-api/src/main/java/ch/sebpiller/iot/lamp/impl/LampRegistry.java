@@ -0,0 +1,152 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import ch.sebpiller.iot.lamp.SmartLampFacade;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lamps sorted in named groups, eg. by room or by the bluetooth adapter they are reached through (see
+ * {@link #registerAll(Map, Map)}). Each group is driven as one lamp by a {@link CompositeLampFacade}, fanning the calls
+ * out to its lamps in parallel.
+ * <p>
+ * The composites are created on first use, and replaced when the lamps of their group change: a composite replaced
+ * keeps driving its lamps for the callers still holding it, until the registry is closed. Closing the registry closes
+ * the composites, not the lamps.
+ */
+public final class LampRegistry implements AutoCloseable {
+    // guarded by this
+    private final Map<String, List<SmartLampFacade>> groups = new LinkedHashMap<>();
+    private final Map<String, CompositeLampFacade> composites = new LinkedHashMap<>();
+    private CompositeLampFacade all;
+    /**
+     * The composites replaced, closed with the registry.
+     */
+    private final List<CompositeLampFacade> replaced = new ArrayList<>();
+
+    /**
+     * Add #lamp to #group, created if needed.
+     *
+     * @return This registry for chaining.
+     */
+    public synchronized LampRegistry register(String group, SmartLampFacade lamp) {
+        Validate.notBlank(group);
+        Validate.notNull(lamp);
+
+        for (Map.Entry<String, List<SmartLampFacade>> e : groups.entrySet()) {
+            Validate.isTrue(!e.getValue().contains(lamp), "lamp %s is already in group %s", lamp, e.getKey());
+        }
+
+        groups.computeIfAbsent(group, g -> new ArrayList<>()).add(lamp);
+        invalidate(group);
+        return this;
+    }
+
+    /**
+     * Add lamps to the groups of the devices they drive, eg. the bluetooth adapters of
+     * {@code AdapterRegistry#getGroups()}: the lamps reached through the same adapter make a group, named after it.
+     *
+     * @param devices The devices of each group.
+     * @param lamps   The lamp driving each device. The devices without a lamp are skipped.
+     * @return This registry for chaining.
+     */
+    public synchronized LampRegistry registerAll(Map<String, ? extends Collection<String>> devices,
+                                                 Map<String, ? extends SmartLampFacade> lamps) {
+        Validate.notNull(devices);
+        Validate.notNull(lamps);
+
+        devices.forEach((group, ids) -> ids.forEach(id -> {
+            SmartLampFacade lamp = lamps.get(id);
+            if (lamp != null) {
+                register(group, lamp);
+            }
+        }));
+        return this;
+    }
+
+    /**
+     * Remove #lamp from its group, if any.
+     */
+    public synchronized void unregister(SmartLampFacade lamp) {
+        for (Map.Entry<String, List<SmartLampFacade>> e : groups.entrySet()) {
+            if (e.getValue().remove(lamp)) {
+                invalidate(e.getKey());
+                if (e.getValue().isEmpty()) {
+                    groups.remove(e.getKey());
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forget the composites including the lamps of #group, without closing them: they may still be in use.
+     */
+    private void invalidate(String group) {
+        CompositeLampFacade composite = composites.remove(group);
+        if (composite != null) {
+            replaced.add(composite);
+        }
+        if (all != null) {
+            replaced.add(all);
+            all = null;
+        }
+    }
+
+    /**
+     * @return The names of the groups, in the order they were created.
+     */
+    public synchronized List<String> getGroupNames() {
+        return Collections.unmodifiableList(new ArrayList<>(groups.keySet()));
+    }
+
+    /**
+     * @return The lamps of #group, none if the group does not exist.
+     */
+    public synchronized List<SmartLampFacade> getLamps(String group) {
+        List<SmartLampFacade> lamps = groups.get(group);
+        return lamps == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(lamps));
+    }
+
+    /**
+     * @return The lamps of #group, driven as one.
+     * @throws IllegalArgumentException if the group does not exist.
+     */
+    public synchronized CompositeLampFacade getGroup(String group) {
+        List<SmartLampFacade> lamps = groups.get(group);
+        Validate.isTrue(lamps != null, "unknown group of lamps %s", group);
+
+        return composites.computeIfAbsent(group, g -> new CompositeLampFacade(lamps.toArray(new SmartLampFacade[0])));
+    }
+
+    /**
+     * @return All the lamps of all the groups, driven as one.
+     */
+    public synchronized CompositeLampFacade getAll() {
+        if (all == null) {
+            List<SmartLampFacade> lamps = new ArrayList<>();
+            groups.values().forEach(lamps::addAll);
+            all = new CompositeLampFacade(lamps.toArray(new SmartLampFacade[0]));
+        }
+        return all;
+    }
+
+    @Override
+    public synchronized void close() {
+        composites.values().forEach(CompositeLampFacade::close);
+        composites.clear();
+
+        if (all != null) {
+            all.close();
+            all = null;
+        }
+
+        replaced.forEach(CompositeLampFacade::close);
+        replaced.clear();
+    }
+}
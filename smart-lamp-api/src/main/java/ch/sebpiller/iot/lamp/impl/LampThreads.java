@@ -0,0 +1,70 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads running the blocking operations of the lamps (bluetooth writes, fades, queued operations).
+ * <p>
+ * By default they are platform daemon threads. When the system property {@value #VIRTUAL_THREADS_PROPERTY} is
+ * {@code true} and the JVM supports them (Java 21+), they are virtual threads instead: a lamp waiting for its device
+ * then does not park a platform thread, and dozens of lamps can be driven with a few carrier threads. Virtual threads
+ * are looked up by reflection, this library still runs on Java 8.
+ */
+public final class LampThreads {
+    private static final Logger LOG = LoggerFactory.getLogger(LampThreads.class);
+
+    public static final String VIRTUAL_THREADS_PROPERTY = "smartlamp.virtualThreads";
+
+    /**
+     * Creates unnamed virtual threads, null when they are not enabled or not supported.
+     */
+    private static final ThreadFactory VIRTUAL = virtualThreadFactory();
+
+    private LampThreads() {
+    }
+
+    /**
+     * @return true if the lamp threads are virtual threads.
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * @param prefix Prefix of the names of the threads.
+     * @param count  Counter numbering the threads named after #prefix.
+     * @return A factory of daemon threads, virtual if enabled.
+     */
+    public static ThreadFactory newThreadFactory(String prefix, AtomicInteger count) {
+        return r -> {
+            Thread t = VIRTUAL != null ? VIRTUAL.newThread(r) : new Thread(r);
+            t.setName(prefix + count.incrementAndGet());
+            if (VIRTUAL == null) {
+                t.setDaemon(true);
+            }
+            return t;
+        };
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        if (!Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) {
+            return null;
+        }
+
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            ThreadFactory f = (ThreadFactory) factory.invoke(builder);
+            LOG.info("lamp operations run on virtual threads");
+            return f;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("virtual threads are not supported by this JVM ({}), using platform threads", e.toString());
+            return null;
+        }
+    }
+}
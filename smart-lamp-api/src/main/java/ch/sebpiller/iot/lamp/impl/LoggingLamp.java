@@ -12,12 +12,7 @@ import java.util.concurrent.Future;
  */
 public class LoggingLamp implements SmartLampFacade {
     private static final Logger LOG = LoggerFactory.getLogger(LoggingLamp.class);
-    private final Future<LoggingLamp> now = new CompletableFuture<LoggingLamp>() {
-        @Override
-        public LoggingLamp get() {
-            return LoggingLamp.this;
-        }
-    };
+    private final Future<LoggingLamp> now = CompletableFuture.completedFuture(this);
 
     @Override
     public LoggingLamp power(boolean b) {
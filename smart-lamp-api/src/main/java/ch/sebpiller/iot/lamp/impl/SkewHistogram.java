@@ -0,0 +1,87 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Counts durations in buckets of powers of two microseconds: bucket 0 counts the durations under 1 us, bucket n the
+ * ones from 2^(n-1) us to 2^n us. Recording is cheap enough to be done at each frame, and thread safe.
+ */
+public final class SkewHistogram {
+    public static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long duration, TimeUnit unit) {
+        long nanos = unit.toNanos(duration);
+        long micros = nanos / 1_000;
+        int bucket = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+        counts.incrementAndGet(bucket);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * @return The number of durations recorded in #bucket.
+     */
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * @return The number of durations recorded.
+     */
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long getMax(TimeUnit unit) {
+        return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param fraction 0..1, eg. 0.99 for the 99th percentile.
+     * @return The upper bound of the bucket holding the given percentile, 0 if nothing has been recorded.
+     */
+    public long getPercentile(double fraction, TimeUnit unit) {
+        long rank = (long) Math.ceil(getCount() * fraction);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen > 0 && seen >= rank) {
+                return unit.convert(1L << i, TimeUnit.MICROSECONDS);
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SkewHistogram{");
+        String sep = "";
+
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.get(i);
+            if (c > 0) {
+                sb.append(sep).append("<").append(1L << i).append("us=").append(c);
+                sep = ", ";
+            }
+        }
+
+        return sb.append(sep).append("max=").append(getMax(TimeUnit.MICROSECONDS)).append("us}").toString();
+    }
+}
@@ -3,6 +3,7 @@ package ch.sebpiller.iot.lamp;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
 
 public class ColorHelperTest {
     @Test
@@ -16,5 +17,47 @@ public class ColorHelperTest {
         assertThat(ColorHelper.parseColor("invalid_value")).containsExactly(0xff, 0xff, 0xff);
     }
 
+    @Test
+    public void testLightness() {
+        assertThat(ColorHelper.luminanceToLightness(0)).isEqualTo(0);
+        assertThat(ColorHelper.luminanceToLightness(1)).isCloseTo(100, within(1e-9));
+        // 18% grey is perceived as half as light as white
+        assertThat(ColorHelper.luminanceToLightness(.18)).isCloseTo(50, within(1d));
+
+        for (int percent = 0; percent <= 100; percent++) {
+            double luminance = percent / 100d;
+            assertThat(ColorHelper.lightnessToLuminance(ColorHelper.luminanceToLightness(luminance)))
+                    .isCloseTo(luminance, within(1e-9));
+        }
+    }
+
+    @Test
+    public void testHsb() {
+        assertThat(ColorHelper.rgbToHsb(0xff, 0x00, 0x00)).isEqualTo(0x0000_ff_ff);
+        assertThat(ColorHelper.rgbToHsb(0x00, 0x00, 0xff)).isEqualTo(0xaaaa_ff_ff);
+        assertThat(ColorHelper.rgbToHsb(0x80, 0x80, 0x80)).isEqualTo(0x0000_00_80);
+
+        assertThat(ColorHelper.hsbToRgb(0x0000_ff_ff)).isEqualTo(0xff0000);
+        assertThat(ColorHelper.hsbToRgb(0x5555_ff_ff)).isEqualTo(0x00ff00);
+        assertThat(ColorHelper.hsbToRgb(0x0000_00_80)).isEqualTo(0x808080);
+
+        int[] amethyst = ColorHelper.parseColor("amethyst");
+        assertThat(ColorHelper.hsbToRgb(ColorHelper.rgbToHsb(amethyst[0], amethyst[1], amethyst[2])))
+                .isEqualTo(0x9966cc);
+    }
+
+    @Test
+    public void testLab() {
+        double[] lab = new double[3];
+
+        ColorHelper.rgbToLab(0xff, 0xff, 0xff, lab);
+        assertThat(lab[0]).isCloseTo(100, within(.01));
+        assertThat(lab[1]).isCloseTo(0, within(.01));
+        assertThat(lab[2]).isCloseTo(0, within(.01));
+
+        ColorHelper.rgbToLab(0xde, 0x31, 0x63, lab);
+        assertThat(ColorHelper.labToRgb(lab[0], lab[1], lab[2])).isEqualTo(0xde3163);
+    }
+
 }
 
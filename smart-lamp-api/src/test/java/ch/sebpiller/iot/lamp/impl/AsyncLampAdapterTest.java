@@ -0,0 +1,27 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AsyncLampAdapterTest {
+    @Test
+    void testErrorCompletesTheStage() throws Exception {
+        try (AsyncLampAdapter adapter = new AsyncLampAdapter(new LoggingLamp())) {
+            CompletableFuture<Void> stage = adapter.run(l -> {
+                throw new NoClassDefFoundError("missing");
+            }).toCompletableFuture();
+
+            assertThatThrownBy(() -> stage.get(1, TimeUnit.SECONDS))
+                    .isInstanceOf(ExecutionException.class)
+                    .hasCauseInstanceOf(NoClassDefFoundError.class);
+
+            // the next operations still run
+            adapter.run(l -> l.power(true)).toCompletableFuture().get(1, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import ch.sebpiller.iot.lamp.LampProperty;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CoalescingWriterTest {
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch busy = new CountDownLatch(1);
+
+    @Test
+    void testLatestValueWinsPerProperty() throws Exception {
+        try (CoalescingWriter writer = blockedWriter()) {
+            post(writer, LampProperty.BRIGHTNESS, "b1");
+            post(writer, LampProperty.BRIGHTNESS, "b2");
+            post(writer, LampProperty.TEMPERATURE, "t1");
+            post(writer, LampProperty.BRIGHTNESS, "b3");
+
+            busy.countDown();
+            assertThat(writer.flush(1, TimeUnit.SECONDS)).isTrue();
+        }
+
+        assertThat(sent).containsExactly("blocker", "t1", "b3");
+    }
+
+    @Test
+    void testWriteSupersedesOtherProperties() throws Exception {
+        try (CoalescingWriter writer = blockedWriter()) {
+            post(writer, LampProperty.COLOR, "c1");
+            post(writer, LampProperty.POWER, "p1");
+            writer.post(LampProperty.BRIGHTNESS, () -> sent.add("color and brightness"), LampProperty.COLOR);
+
+            busy.countDown();
+            assertThat(writer.flush(1, TimeUnit.SECONDS)).isTrue();
+        }
+
+        assertThat(sent).containsExactly("blocker", "p1", "color and brightness");
+    }
+
+    @Test
+    void testPartialWriteDoesNotDropOtherProperties() throws Exception {
+        try (CoalescingWriter writer = blockedWriter()) {
+            writer.post(LampProperty.COLOR, () -> sent.add("frame"), LampProperty.BRIGHTNESS, LampProperty.TEMPERATURE);
+            post(writer, LampProperty.COLOR, "c1");
+            post(writer, LampProperty.BRIGHTNESS, "b1");
+
+            busy.countDown();
+            assertThat(writer.flush(1, TimeUnit.SECONDS)).isTrue();
+        }
+
+        // the frame still carries the newest temperature, it is sent once, before the newer writes
+        assertThat(sent).containsExactly("blocker", "frame", "c1", "b1");
+    }
+
+    @Test
+    void testWritesAreSentInTheOrderOfTheirLastPost() throws Exception {
+        try (CoalescingWriter writer = blockedWriter()) {
+            post(writer, LampProperty.SCENE, "s1");
+            post(writer, LampProperty.COLOR, "c1");
+            post(writer, LampProperty.POWER, "p1");
+            post(writer, LampProperty.SCENE, "s2");
+
+            busy.countDown();
+            assertThat(writer.flush(1, TimeUnit.SECONDS)).isTrue();
+        }
+
+        assertThat(sent).containsExactly("blocker", "c1", "p1", "s2");
+    }
+
+    @Test
+    void testFlushTimesOutWhileWritesArePending() throws Exception {
+        try (CoalescingWriter writer = blockedWriter()) {
+            post(writer, LampProperty.POWER, "p1");
+            assertThat(writer.flush(50, TimeUnit.MILLISECONDS)).isFalse();
+
+            busy.countDown();
+            assertThat(writer.flush(1, TimeUnit.SECONDS)).isTrue();
+            assertThat(sent).containsExactly("blocker", "p1");
+        }
+    }
+
+    @Test
+    void testCloseSendsPendingWrites() throws Exception {
+        CoalescingWriter writer = blockedWriter();
+        post(writer, LampProperty.POWER, "p1");
+        busy.countDown();
+        writer.close();
+
+        assertThat(sent).containsExactly("blocker", "p1");
+        assertThatThrownBy(() -> post(writer, LampProperty.POWER, "p2")).isInstanceOf(IllegalStateException.class);
+    }
+
+    /**
+     * A writer busy sending a first write until {@link #busy} is released, so the next posts are pending.
+     */
+    private CoalescingWriter blockedWriter() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CoalescingWriter writer = new CoalescingWriter();
+        writer.post(LampProperty.POWER, () -> {
+            started.countDown();
+            try {
+                busy.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sent.add("blocker");
+        });
+
+        started.await();
+        return writer;
+    }
+
+    private void post(CoalescingWriter writer, LampProperty property, String value) {
+        writer.post(property, () -> sent.add(value));
+    }
+}
@@ -0,0 +1,178 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import ch.sebpiller.iot.lamp.LampProperty;
+import ch.sebpiller.iot.lamp.SmartLampFacade;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static ch.sebpiller.iot.lamp.SmartLampFacade.FadeStyle.FAST;
+import static ch.sebpiller.iot.lamp.SmartLampFacade.FadeStyle.NORMAL;
+import static ch.sebpiller.iot.lamp.SmartLampFacade.FadeStyle.SLOW;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FadeEngineTest {
+    @Test
+    void testFadeSupersedesRunningFadeOfSameProperty() throws Exception {
+        try (RecordingLamp lamp = new RecordingLamp()) {
+            Future<AbstractLampBase> up = lamp.fadeBrightnessFromTo((byte) 0, (byte) 100, SLOW);
+            Thread.sleep(300);
+            Future<AbstractLampBase> down = lamp.fadeBrightnessTo((byte) 0, FAST);
+            down.get(2, TimeUnit.SECONDS);
+
+            assertThat(up).isCancelled();
+            assertThat(lamp.getState().getBrightness()).isEqualTo((byte) 0);
+
+            // the second fade starts from the value reached by the first one: it goes up, then down, without jumps
+            List<Integer> values = lamp.values(LampProperty.BRIGHTNESS);
+            int top = values.indexOf(values.stream().max(Integer::compare).get());
+            assertThat(values.get(top)).isBetween(10, 60);
+            for (int i = 1; i < values.size(); i++) {
+                if (i <= top) {
+                    assertThat(values.get(i)).isGreaterThan(values.get(i - 1));
+                } else {
+                    assertThat(values.get(i)).isLessThanOrEqualTo(values.get(i - 1));
+                }
+            }
+        }
+    }
+
+    @Test
+    void testFadesOfDifferentPropertiesRunInParallel() throws Exception {
+        try (RecordingLamp lamp = new RecordingLamp()) {
+            long start = System.nanoTime();
+            Future<AbstractLampBase> brightness = lamp.fadeBrightnessFromTo((byte) 0, (byte) 100, NORMAL);
+            Future<AbstractLampBase> temperature = lamp.fadeTemperatureFromTo(2000, 4000, NORMAL);
+            brightness.get(2, TimeUnit.SECONDS);
+            temperature.get(2, TimeUnit.SECONDS);
+
+            // one after the other, they would last twice as long
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(700L);
+            assertThat(lamp.getState().getBrightness()).isEqualTo((byte) 100);
+            assertThat(lamp.getState().getTemperature()).isEqualTo(4000);
+            // the values of both fades are applied in the same frames
+            assertThat(lamp.sharedFrames()).isGreaterThan(5);
+        }
+    }
+
+    @Test
+    void testFrameRateChangesOnceTheEngineIsIdle() throws Exception {
+        try (RecordingLamp lamp = new RecordingLamp()) {
+            lamp.setFadeFrameRate(10);
+            Future<AbstractLampBase> slow = lamp.fadeBrightnessFromTo((byte) 0, (byte) 100, NORMAL);
+            lamp.setFadeFrameRate(100);
+            slow.get(2, TimeUnit.SECONDS);
+
+            // the running fade keeps the frame rate it started with: 500ms at 10 fps
+            assertThat(lamp.getFadeFrameRate()).isEqualTo(100);
+            assertThat(lamp.frames()).isBetween(4, 8);
+
+            // let the engine notice it has nothing left to animate
+            Thread.sleep(250);
+            lamp.clear();
+            lamp.fadeBrightnessFromTo((byte) 0, (byte) 100, NORMAL).get(2, TimeUnit.SECONDS);
+
+            assertThat(lamp.frames()).isGreaterThan(25);
+        }
+    }
+
+    /**
+     * Records the values written, frame by frame. Fades last 200ms (fast), 500ms (normal) or 1s (slow).
+     */
+    private static final class RecordingLamp extends AbstractLampBase {
+        // guarded by this
+        private final List<List<Object[]>> frames = new ArrayList<>();
+        private List<Object[]> current;
+
+        @Override
+        protected long getFadeDurationMillis(FadeStyle fadeStyle) {
+            switch (fadeStyle) {
+                case FAST:
+                    return 200;
+                case SLOW:
+                    return 1_000;
+                default:
+                    return 500;
+            }
+        }
+
+        @Override
+        public synchronized SmartLampFacade frame(Consumer<SmartLampFacade> changes) {
+            current = new ArrayList<>();
+            try {
+                changes.accept(this);
+            } finally {
+                frames.add(current);
+                current = null;
+            }
+            return this;
+        }
+
+        private synchronized void record(LampProperty property, int value) {
+            Object[] write = {property, value};
+            if (current != null) {
+                current.add(write);
+            } else {
+                List<Object[]> single = new ArrayList<>();
+                single.add(write);
+                frames.add(single);
+            }
+        }
+
+        synchronized List<Integer> values(LampProperty property) {
+            List<Integer> values = new ArrayList<>();
+            for (List<Object[]> frame : frames) {
+                for (Object[] write : frame) {
+                    if (write[0] == property) {
+                        values.add((Integer) write[1]);
+                    }
+                }
+            }
+            return values;
+        }
+
+        synchronized int frames() {
+            return frames.size();
+        }
+
+        synchronized int sharedFrames() {
+            return (int) frames.stream().filter(f -> f.size() > 1).count();
+        }
+
+        synchronized void clear() {
+            frames.clear();
+        }
+
+        @Override
+        public SmartLampFacade power(boolean on) {
+            return this;
+        }
+
+        @Override
+        public SmartLampFacade setBrightness(byte percent) {
+            record(LampProperty.BRIGHTNESS, percent);
+            return this;
+        }
+
+        @Override
+        public SmartLampFacade setTemperature(int kelvin) {
+            record(LampProperty.TEMPERATURE, kelvin);
+            return this;
+        }
+
+        @Override
+        public SmartLampFacade setColor(int red, int green, int blue) {
+            record(LampProperty.COLOR, red << 16 | green << 8 | blue);
+            return this;
+        }
+
+        @Override
+        public SmartLampFacade setScene(byte scene) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ch.sebpiller.iot.lamp.impl;
+
+import ch.sebpiller.iot.lamp.SmartLampFacade;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LampRegistryTest {
+    @Test
+    void testLampsAreGroupedByTheGroupsOfTheirDevices() {
+        SmartLampFacade a = new LoggingLamp();
+        SmartLampFacade b = new LoggingLamp();
+        SmartLampFacade c = new LoggingLamp();
+
+        Map<String, List<String>> adapters = new LinkedHashMap<>();
+        adapters.put("hci0", Arrays.asList("A", "C"));
+        adapters.put("hci1", Arrays.asList("B", "D"));
+        Map<String, SmartLampFacade> lamps = new HashMap<>();
+        lamps.put("A", a);
+        lamps.put("B", b);
+        lamps.put("C", c);
+
+        try (LampRegistry registry = new LampRegistry().registerAll(adapters, lamps)) {
+            assertThat(registry.getGroupNames()).containsExactly("hci0", "hci1");
+            assertThat(registry.getLamps("hci0")).containsExactly(a, c);
+            assertThat(registry.getLamps("hci1")).containsExactly(b);
+        }
+    }
+
+    @Test
+    void testCompositeReplacedStillDrivesItsLamps() {
+        SmartLampFacade a = new LoggingLamp();
+
+        try (LampRegistry registry = new LampRegistry().register("room", a)) {
+            CompositeLampFacade held = registry.getGroup("room");
+            registry.register("room", new LoggingLamp());
+
+            assertThat(registry.getGroup("room")).isNotSameAs(held);
+            assertThat(registry.getGroup("room").getLamps()).hasSize(2);
+            // the caller holding the former composite can still use it
+            held.power(true);
+            assertThat(held.getLamps()).containsExactly(a);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package ch.sebpiller.iot.lamp.sequencer;
+
+import ch.sebpiller.iot.lamp.SmartLampFacade;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link SmartLampSequence} compiled into a flat array of instructions, played without locks.
+ * <p>
+ * The instructions of all the frames (beats) are stored one after the other in a single {@code int[]}: an opcode
+ * followed by its operands. A second array gives the offset of the first instruction of each frame. The operands that
+ * are not integers (colors to fade, custom code) are stored in a table of constants, and referenced by their index.
+ * <p>
+ * A compiled sequence cannot change. It is thread safe: the frame to play next is held by an atomic cursor.
+ */
+public final class CompiledSequence {
+    private static final Logger LOG = LoggerFactory.getLogger(CompiledSequence.class);
+
+    // opcodes, followed by the number of operands given in ARITY
+    static final int SLEEP = 0;
+    static final int POWER = 1;
+    static final int BRIGHTNESS = 2;
+    static final int FADE_BRIGHTNESS_FROM_TO = 3;
+    static final int FADE_BRIGHTNESS_TO = 4;
+    static final int TEMPERATURE = 5;
+    static final int FADE_TEMPERATURE_FROM_TO = 6;
+    static final int FADE_TEMPERATURE_TO = 7;
+    static final int FADE_COLOR_FROM_TO = 8; // constant int[][]{from, to}, style
+    static final int FADE_COLOR_TO = 9; // constant int[] to, style
+    static final int SCENE = 10;
+    static final int COLOR = 11;
+    static final int INVOKE = 12; // constant InvokeOnSmartLamp
+    static final int FRAME = 13; // length of the instructions to play in one frame
+
+    private static final int[] ARITY = {1, 1, 1, 3, 2, 1, 3, 2, 2, 2, 1, 3, 1, 1};
+    private static final String[] NAMES = {"SLEEP", "POWER", "BRIGHTNESS", "FADE_BRIGHTNESS_FROM_TO",
+            "FADE_BRIGHTNESS_TO", "TEMPERATURE", "FADE_TEMPERATURE_FROM_TO", "FADE_TEMPERATURE_TO",
+            "FADE_COLOR_FROM_TO", "FADE_COLOR_TO", "SCENE", "COLOR", "INVOKE", "FRAME"};
+    private static final SmartLampFacade.FadeStyle[] STYLES = SmartLampFacade.FadeStyle.values();
+
+    private final int[] code;
+    private final int[] frames;
+    private final Object[] constants;
+    private final int[] sleeps;
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    private CompiledSequence(int[] code, int[] frames, Object[] constants) {
+        this.code = code;
+        this.frames = frames;
+        this.constants = constants;
+        this.sleeps = new int[frames.length];
+
+        for (int f = 0; f < frames.length; f++) {
+            int end = f + 1 < frames.length ? frames[f + 1] : code.length;
+            for (int pc = frames[f]; pc < end; pc += 1 + ARITY[code[pc]]) {
+                if (code[pc] == SLEEP) {
+                    sleeps[f] += code[pc + 1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Compile the steps currently recorded in #sequence. Each step is a frame, except when #sequence is itself a
+     * frame: then all its steps are a single frame.
+     */
+    static CompiledSequence compile(SmartLampSequence sequence) {
+        Compiler c = new Compiler();
+
+        if (sequence instanceof SmartLampSequence.PlayAllAtOneTimeSequence) {
+            c.frames.add(c.length);
+            c.frame((SmartLampSequence.PlayAllAtOneTimeSequence) sequence);
+        } else {
+            for (SmartLampSequence.InvokeOnSmartLamp step : sequence.steps()) {
+                c.frames.add(c.length);
+                if (step instanceof SmartLampSequence.PlayAllAtOneTimeSequence) {
+                    c.frame((SmartLampSequence.PlayAllAtOneTimeSequence) step);
+                } else {
+                    c.emit(step);
+                }
+            }
+        }
+
+        return c.build();
+    }
+
+    /**
+     * @return The number of frames (beats) of this sequence.
+     */
+    public int size() {
+        return frames.length;
+    }
+
+    /**
+     * @return The total time frame #frame sleeps on purpose, in ms.
+     */
+    public int sleepMillis(int frame) {
+        return sleeps[frame];
+    }
+
+    /**
+     * Plays the next frame of this sequence, starting again from the beginning after the last one.
+     *
+     * @param realLamp The lamp to pilot.
+     * @return This sequence for chaining.
+     */
+    public CompiledSequence play(SmartLampFacade realLamp) {
+        int n = frames.length;
+        if (n > 0) {
+            play(realLamp, cursor.getAndUpdate(i -> i + 1 < n ? i + 1 : 0));
+        }
+        return this;
+    }
+
+    /**
+     * Plays the frame #frame of this sequence, without moving the cursor.
+     */
+    public CompiledSequence play(SmartLampFacade realLamp, int frame) {
+        int pc = frames[frame];
+        int end = frame + 1 < frames.length ? frames[frame + 1] : code.length;
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("playing frame #{} of {}", frame, frames.length);
+        }
+
+        if (code[pc] == FRAME) {
+            int from = pc + 2;
+            realLamp.frame(lamp -> run(lamp, from, end));
+        } else {
+            run(realLamp, pc, end);
+        }
+        return this;
+    }
+
+    /**
+     * Plays the next frame of this sequence without waiting for its sleeps (see
+     * {@link #play(SmartLampFacade, int, TimingWheel)}), starting again from the beginning after the last one.
+     */
+    public CompiledSequence play(SmartLampFacade realLamp, TimingWheel wheel) {
+        int n = frames.length;
+        if (n > 0) {
+            play(realLamp, cursor.getAndUpdate(i -> i + 1 < n ? i + 1 : 0), wheel);
+        }
+        return this;
+    }
+
+    /**
+     * Plays the frame #frame of this sequence without waiting for its sleeps, and without moving the cursor: the
+     * instructions following a sleep are scheduled on #wheel, to run when the sleep would have ended. Returns once the
+     * instructions before the first sleep have been played.
+     * <p>
+     * The times are counted from the start of the frame, so a slow lamp does not make the sub-steps of a frame (eg. a
+     * flash) drift. The instructions of a frame still run in order, each part of it waiting for the previous one.
+     */
+    public CompiledSequence play(SmartLampFacade realLamp, int frame, TimingWheel wheel) {
+        int pc = frames[frame];
+        int end = frame + 1 < frames.length ? frames[frame + 1] : code.length;
+        boolean grouped = code[pc] == FRAME;
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("playing frame #{} of {} on timing wheel", frame, frames.length);
+        }
+
+        new TimedFrame(realLamp, wheel, frame, grouped ? pc + 2 : pc, end, grouped).next();
+        return this;
+    }
+
+    /**
+     * Skip #count frames (beats) of this sequence.
+     */
+    public void skip(int count) {
+        int n = frames.length;
+        if (n > 0) {
+            cursor.getAndUpdate(i -> (int) ((i + (long) count) % n));
+        }
+    }
+
+    private void run(SmartLampFacade lamp, int pc, int end) {
+        while (pc < end) {
+            pc = execute(lamp, code, pc, constants);
+        }
+    }
+
+    /**
+     * The part of a frame left to play, after a sleep.
+     */
+    private final class TimedFrame implements Runnable {
+        private final SmartLampFacade lamp;
+        private final TimingWheel wheel;
+        private final int frame;
+        private final int end;
+        private final boolean grouped;
+        private final long start = System.nanoTime();
+        private int pc;
+        private long sleptMillis;
+
+        TimedFrame(SmartLampFacade lamp, TimingWheel wheel, int frame, int pc, int end, boolean grouped) {
+            this.lamp = lamp;
+            this.wheel = wheel;
+            this.frame = frame;
+            this.pc = pc;
+            this.end = end;
+            this.grouped = grouped;
+        }
+
+        /**
+         * Play the instructions up to the next sleep, and schedule the ones after it.
+         */
+        void next() {
+            int from = pc;
+            int to = from;
+            while (to < end && code[to] != SLEEP) {
+                to += 1 + ARITY[code[to]];
+            }
+
+            if (from < to) {
+                int stop = to;
+                if (grouped) {
+                    // what has been done before the pause must be visible during the pause
+                    lamp.frame(l -> CompiledSequence.this.run(l, from, stop));
+                } else {
+                    CompiledSequence.this.run(lamp, from, stop);
+                }
+            }
+
+            // nothing to wait for after a sleep ending the frame
+            if (to + 2 < end) {
+                sleptMillis += code[to + 1];
+                pc = to + 2;
+                long delay = start + TimeUnit.MILLISECONDS.toNanos(sleptMillis) - System.nanoTime();
+                wheel.schedule(this, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                next();
+            } catch (RuntimeException e) {
+                LOG.error("failed to play the end of frame #{}: {}", frame, e.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Interprets the instruction at #pc.
+     *
+     * @return The offset of the next instruction.
+     */
+    static int execute(SmartLampFacade lamp, int[] code, int pc, Object[] constants) {
+        int op = code[pc];
+
+        switch (op) {
+            case SLEEP:
+                lamp.sleep(code[pc + 1]);
+                break;
+            case POWER:
+                lamp.power(code[pc + 1] != 0);
+                break;
+            case BRIGHTNESS:
+                lamp.setBrightness((byte) code[pc + 1]);
+                break;
+            case FADE_BRIGHTNESS_FROM_TO:
+                lamp.fadeBrightnessFromTo((byte) code[pc + 1], (byte) code[pc + 2], STYLES[code[pc + 3]]);
+                break;
+            case FADE_BRIGHTNESS_TO:
+                lamp.fadeBrightnessTo((byte) code[pc + 1], STYLES[code[pc + 2]]);
+                break;
+            case TEMPERATURE:
+                lamp.setTemperature(code[pc + 1]);
+                break;
+            case FADE_TEMPERATURE_FROM_TO:
+                lamp.fadeTemperatureFromTo(code[pc + 1], code[pc + 2], STYLES[code[pc + 3]]);
+                break;
+            case FADE_TEMPERATURE_TO:
+                lamp.fadeTemperatureTo(code[pc + 1], STYLES[code[pc + 2]]);
+                break;
+            case FADE_COLOR_FROM_TO:
+                int[][] fromTo = (int[][]) constants[code[pc + 1]];
+                lamp.fadeColorFromTo(fromTo[0], fromTo[1], STYLES[code[pc + 2]]);
+                break;
+            case FADE_COLOR_TO:
+                lamp.fadeColorTo((int[]) constants[code[pc + 1]], STYLES[code[pc + 2]]);
+                break;
+            case SCENE:
+                lamp.setScene((byte) code[pc + 1]);
+                break;
+            case COLOR:
+                lamp.setColor(code[pc + 1], code[pc + 2], code[pc + 3]);
+                break;
+            case INVOKE:
+                ((SmartLampSequence.InvokeOnSmartLamp) constants[code[pc + 1]]).invoke(lamp);
+                break;
+            default:
+                throw new IllegalStateException("unexpected opcode " + op + " at " + pc);
+        }
+
+        return pc + 1 + ARITY[op];
+    }
+
+    /**
+     * @return true if the first operand of #op is the index of a constant.
+     */
+    static boolean hasConstant(int op) {
+        return op == FADE_COLOR_FROM_TO || op == FADE_COLOR_TO || op == INVOKE;
+    }
+
+    static String toString(int[] code, int pc) {
+        int op = code[pc];
+        StringBuilder sb = new StringBuilder(NAMES[op]);
+        for (int i = 1; i <= ARITY[op]; i++) {
+            sb.append(' ').append(code[pc + i]);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CompiledSequence{frames=").append(frames.length);
+        for (int f = 0; f < frames.length; f++) {
+            int end = f + 1 < frames.length ? frames[f + 1] : code.length;
+            sb.append("\n  #").append(f).append(':');
+            for (int pc = frames[f]; pc < end; pc += 1 + ARITY[code[pc]]) {
+                sb.append(' ').append(toString(code, pc)).append(';');
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Appends the steps of a sequence to growing arrays.
+     */
+    private static final class Compiler {
+        private int[] code = new int[64];
+        private int length;
+        private final List<Integer> frames = new ArrayList<>();
+        private final List<Object> constants = new ArrayList<>();
+
+        /**
+         * A single frame playing all the steps of #group, and of the groups nested in it.
+         */
+        void frame(SmartLampSequence.PlayAllAtOneTimeSequence group) {
+            append(FRAME, 0);
+            int start = length;
+            inline(group);
+            code[start - 1] = length - start;
+        }
+
+        private void inline(SmartLampSequence.PlayAllAtOneTimeSequence group) {
+            for (SmartLampSequence.InvokeOnSmartLamp step : group.steps()) {
+                emit(step);
+            }
+        }
+
+        void emit(SmartLampSequence.InvokeOnSmartLamp step) {
+            if (step instanceof SmartLampSequence.PlayAllAtOneTimeSequence) {
+                // a frame in a frame: already played at once
+                inline((SmartLampSequence.PlayAllAtOneTimeSequence) step);
+            } else if (step instanceof SmartLampSequence.Instruction) {
+                SmartLampSequence.Instruction i = (SmartLampSequence.Instruction) step;
+                int at = length;
+                append(i.code);
+                if (hasConstant(i.code[0])) {
+                    code[at + 1] = constant(i.constants[0]);
+                }
+            } else {
+                append(INVOKE, constant(step));
+            }
+        }
+
+        private int constant(Object o) {
+            constants.add(o);
+            return constants.size() - 1;
+        }
+
+        private void append(int... ints) {
+            if (length + ints.length > code.length) {
+                code = Arrays.copyOf(code, Math.max(code.length * 2, length + ints.length));
+            }
+            System.arraycopy(ints, 0, code, length, ints.length);
+            length += ints.length;
+        }
+
+        CompiledSequence build() {
+            int[] f = new int[frames.size()];
+            for (int i = 0; i < f.length; i++) {
+                f[i] = frames.get(i);
+            }
+            return new CompiledSequence(Arrays.copyOf(code, length), f, constants.toArray());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ch.sebpiller.iot.lamp.sequencer;
+
+import ch.sebpiller.iot.lamp.SmartLampFacade;
+import ch.sebpiller.iot.lamp.impl.AbstractLampBase;
+import ch.sebpiller.iot.lamp.impl.LampThreads;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays a {@link CompiledSequence} ahead of the beats, to hide the latency of the lamp.
+ * <p>
+ * On each {@link #beat(float)}, the frame of the next beat is scheduled one beat period later, minus the time the lamp
+ * takes to apply a frame. That latency is measured on each frame played (not counting the sleeps of the frame itself),
+ * until its writes have reached the lamp: a lamp coalescing its writes returns once they are posted, the player then
+ * waits for them to be sent (see {@link AbstractLampBase#flushWrites(long, TimeUnit)}). The latency is smoothed with
+ * an exponentially weighted moving average. The light changes then land on the beats instead of one
+ * bluetooth round-trip after them. The first beat has nothing scheduled yet: its frame is played at once.
+ * <p>
+ * The frames are played in order by a single thread dedicated to the lamp (see {@link LampThreads}), so the caller
+ * (typically a metronome) is never blocked. A frame that can not start within a beat period of its due time is
+ * dropped, to keep the sequence in sync with the music.
+ * <p>
+ * Given a {@link TimingWheel}, the sleeps of the frames do not hold that thread: the end of a frame is played by the
+ * wheel, while the next frames can start (see {@link CompiledSequence#play(SmartLampFacade, int, TimingWheel)}).
+ */
+public class LookAheadSequencePlayer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(LookAheadSequencePlayer.class);
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    /**
+     * Weight of the last measure in the latency estimate.
+     */
+    private static final double ALPHA = .2;
+
+    private final CompiledSequence sequence;
+    private final SmartLampFacade lamp;
+    private final ScheduledThreadPoolExecutor executor;
+    private final TimingWheel wheel;
+    private final AtomicInteger nextFrame = new AtomicInteger();
+    private volatile long latencyNanos;
+    private volatile boolean started;
+
+    public LookAheadSequencePlayer(CompiledSequence sequence, SmartLampFacade lamp) {
+        this(sequence, lamp, null);
+    }
+
+    /**
+     * @param wheel Plays the parts of the frames following a sleep, null to sleep on the thread of this player. Not
+     *              closed by this player.
+     */
+    public LookAheadSequencePlayer(CompiledSequence sequence, SmartLampFacade lamp, TimingWheel wheel) {
+        this.sequence = Validate.notNull(sequence);
+        this.lamp = Validate.notNull(lamp);
+        this.wheel = wheel;
+        ThreadFactory threads = LampThreads.newThreadFactory("lamp-look-ahead-", THREAD_COUNT);
+        this.executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = threads.newThread(r);
+            // ignored by virtual threads
+            t.setPriority(Thread.MAX_PRIORITY);
+            return t;
+        });
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * @return The current estimate of the time the lamp takes to apply a frame.
+     */
+    public long getLatency(TimeUnit unit) {
+        return unit.convert(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * To call on each beat of the music: schedules the frame of the next beat.
+     *
+     * @param bpm The current tempo, telling when the next beat comes.
+     */
+    public void beat(float bpm) {
+        if (sequence.size() == 0) {
+            return;
+        }
+
+        long period = bpm > 0 ? (long) (TimeUnit.MINUTES.toNanos(1) / bpm) : 0;
+
+        if (!started) {
+            started = true;
+            schedule(0, period);
+        }
+
+        schedule(period - Math.min(latencyNanos, period), period);
+    }
+
+    /**
+     * To call when beats have been missed: the frames of these beats are skipped.
+     */
+    public void missedBeats(int count) {
+        int size = sequence.size();
+
+        if (size > 0) {
+            nextFrame.getAndUpdate(i -> (int) ((i + (long) count) % size));
+        }
+    }
+
+    private void schedule(long delayNanos, long periodNanos) {
+        int size = sequence.size();
+        int frame = nextFrame.getAndUpdate(i -> i + 1 < size ? i + 1 : 0);
+        long due = System.nanoTime() + delayNanos;
+
+        executor.schedule(() -> play(frame, due, periodNanos), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void play(int frame, long due, long period) {
+        long start = System.nanoTime();
+
+        if (period > 0 && start - due > period) {
+            LOG.warn("lamp is late, skipped frame #{} ({} ms behind)", frame, TimeUnit.NANOSECONDS.toMillis(start - due));
+            return;
+        }
+
+        try {
+            if (wheel != null) {
+                sequence.play(lamp, frame, wheel);
+            } else {
+                sequence.play(lamp, frame);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("failed to play frame #{}: {}", frame, e.toString(), e);
+            return;
+        }
+
+        if (lamp instanceof AbstractLampBase) {
+            try {
+                // a timeout is measured as is: the frames are then sent a full period ahead
+                ((AbstractLampBase) lamp).flushWrites(period > 0 ? period : TimeUnit.SECONDS.toNanos(1), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        long sample = System.nanoTime() - start;
+        if (wheel == null) {
+            sample -= TimeUnit.MILLISECONDS.toNanos(sequence.sleepMillis(frame));
+        }
+        long latency = latencyNanos;
+        latencyNanos = latency + (long) (ALPHA * (Math.max(0, sample) - latency));
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("frame #{} played in {} ms, latency estimate {} ms", frame,
+                    TimeUnit.NANOSECONDS.toMillis(sample), TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+        }
+    }
+
+    /**
+     * Drops the frames not played yet, and waits for the one playing to end.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -8,20 +8,46 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 import static ch.sebpiller.iot.lamp.ColorHelper.parseColor;
 
 /**
  * A parser that produce {@link SmartLampSequence} reading instructions in a yaml formatted resource.
+ * <p>
+ * The named sequences are parsed once, the first time they are referenced, and then shared by all the references.
  */
 public class SmartLampScript {
+    /**
+     * Maximum number of single commands kept parsed by {@link #fromSingleCommand(String)}.
+     */
+    public static final int SINGLE_COMMAND_CACHE_SIZE = 64;
+
+    /**
+     * The steps of the single commands parsed, never played: each script plays a copy of its own.
+     */
+    private static final Map<String, SmartLampSequence> SINGLE_COMMANDS = Collections.synchronizedMap(
+            new LinkedHashMap<String, SmartLampSequence>(16, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SmartLampSequence> eldest) {
+                    return size() > SINGLE_COMMAND_CACHE_SIZE;
+                }
+            });
+
     private YamlScript yamlScript;
     private String name;
 
+    // named sequences already parsed, and the ones being parsed. Guarded by this
+    private final Map<String, SmartLampSequence> parsedSequences = new HashMap<>();
+    private final Set<String> parsing = new HashSet<>();
+
     public SmartLampScript() {
     }
 
@@ -31,12 +57,24 @@ public class SmartLampScript {
 
     /**
      * Using a single command in the form: "power=true;color=red;brightness=80".
+     * <p>
+     * The last {@value #SINGLE_COMMAND_CACHE_SIZE} commands are kept parsed: a command received again is not parsed
+     * again. Each script returned has a sequence of its own, so several scripts of the same command can be played at
+     * the same time.
      */
     public static SmartLampScript fromSingleCommand(String commandList) {
         return new SmartLampScript() {
+            private volatile SmartLampSequence before;
+
             @Override
             public SmartLampSequence getBeforeSequence() {
-                return parseStep(SmartLampSequence.record(), commandList, null);
+                SmartLampSequence b = before;
+                if (b == null) {
+                    SmartLampSequence parsed = SINGLE_COMMANDS.computeIfAbsent(commandList,
+                            c -> parseStep(SmartLampSequence.record(), c, null));
+                    before = b = SmartLampSequence.record().then(parsed);
+                }
+                return b;
             }
         };
     }
@@ -141,20 +179,51 @@ public class SmartLampScript {
     public Map<String, SmartLampSequence> getSequences() {
         Map<String, SmartLampSequence> sequences = new HashMap<>();
 
-        for (Map.Entry<String, String[]> current : yamlScript.getSequences().entrySet()) {
-            SmartLampSequence record = SmartLampSequence.record();
-
-            for (String step : current.getValue()) {
-                SmartLampSequence currentSeq = parseStep(record, step, this);
-                sequences.put(current.getKey(), currentSeq);
-            }
+        for (String name : definedSequences().keySet()) {
+            sequences.put(name, getSequence(name));
         }
 
         return sequences;
     }
 
-    public SmartLampSequence getSequence(String name) {
-        return getSequences().get(name);
+    /**
+     * Get the sequence #name, parsing it the first time only.
+     *
+     * @return The sequence, shared with all the other users of this sequence: do not modify it. Null if it is not
+     * defined.
+     * @throws IllegalArgumentException if the sequence can not be parsed, or references itself.
+     */
+    public synchronized SmartLampSequence getSequence(String name) {
+        SmartLampSequence sequence = parsedSequences.get(name);
+        if (sequence != null) {
+            return sequence;
+        }
+
+        String[] steps = definedSequences().get(name);
+        if (steps == null) {
+            return null;
+        }
+
+        if (!parsing.add(name)) {
+            throw new IllegalArgumentException("the sequence '" + name + "' references itself, directly or not");
+        }
+
+        try {
+            sequence = SmartLampSequence.record();
+            for (String step : steps) {
+                sequence = parseStep(sequence, step, this);
+            }
+
+            parsedSequences.put(name, sequence);
+            return sequence;
+        } finally {
+            parsing.remove(name);
+        }
+    }
+
+    private Map<String, String[]> definedSequences() {
+        Map<String, String[]> sequences = yamlScript == null ? null : yamlScript.getSequences();
+        return sequences == null ? Collections.emptyMap() : sequences;
     }
 
     public SmartLampSequence buildMainLoopSequence() {
@@ -4,15 +4,23 @@ import ch.sebpiller.iot.lamp.SmartLampFacade;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ch.sebpiller.iot.lamp.sequencer.CompiledSequence.*;
 
 /**
  * Fluent api exposing the interface of a {@link SmartLampFacade}, but that actually only records a sequence of call
  * to be played in a loop later.
+ * <p>
+ * Once recorded, a sequence can be {@link #compile() compiled} to be played faster.
+ * <p>
+ * Playing takes no lock: the steps are an immutable array, replaced as a whole when a step is recorded, and the step
+ * to play next is an atomic cursor. A slow lamp thus never delays {@link #skip(int)}, nor the recording.
  */
 public class SmartLampSequence implements SmartLampFacade {
     public static final SmartLampSequence NOOP = new SmartLampSequence() {
@@ -29,8 +37,11 @@ public class SmartLampSequence implements SmartLampFacade {
     };
 
     private static final Logger LOG = LoggerFactory.getLogger(SmartLampSequence.class);
-    protected final List<InvokeOnSmartLamp> callables = Collections.synchronizedList(new ArrayList<>());
-    private int playIndex = 0;
+    private static final InvokeOnSmartLamp[] EMPTY = {};
+
+    // copy on write, the writers synchronize on this
+    private volatile InvokeOnSmartLamp[] callables = EMPTY;
+    private final AtomicInteger playIndex = new AtomicInteger();
     private final SmartLampSequence parent;
 
     public SmartLampSequence() {
@@ -47,7 +58,7 @@ public class SmartLampSequence implements SmartLampFacade {
 
     @Override
     public SmartLampSequence sleep(int millis) {
-        add(facade -> facade.sleep(millis));
+        add(SLEEP, millis);
         return this;
     }
 
@@ -57,10 +68,10 @@ public class SmartLampSequence implements SmartLampFacade {
      * Useful if the thread currently running this sequence has not been able to beat at the appropriate instant.
      */
     public void skip(int count) {
-        synchronized (callables) {
-            for (int i = 0; i < count; i++) {
-                nextCallable();
-            }
+        int size = callables.length;
+
+        if (size > 0) {
+            playIndex.getAndUpdate(i -> (int) ((i + (long) count) % size));
         }
     }
 
@@ -72,60 +83,64 @@ public class SmartLampSequence implements SmartLampFacade {
      * @return This sequencer for chaining.
      */
     public SmartLampSequence play(SmartLampFacade realLamp) {
-        synchronized (callables) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("invoking callable #{} of {}", playIndex, callables.size());
-            }
-            InvokeOnSmartLamp invoke = nextCallable();
+        InvokeOnSmartLamp[] steps = callables;
+
+        if (steps.length > 0) {
+            int index = playIndex.getAndUpdate(i -> i + 1 < steps.length ? i + 1 : 0) % steps.length;
 
-            if (invoke != null) {
-                invoke.invoke(realLamp);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("invoking callable #{} of {}", index, steps.length);
             }
+            steps[index].invoke(realLamp);
         }
 
         return this;
     }
 
-    /**
-     * Get the next step defined in this sequence as an instance of {@link InvokeOnSmartLamp}. Restart
-     * at the beginning if the end is reached. Returns {@code null} if and only if this sequence is currently
-     * empty (0 step defined).
-     */
-    private InvokeOnSmartLamp nextCallable() {
-        InvokeOnSmartLamp invoke = null;
+    void add(InvokeOnSmartLamp c) {
+        addAll(new InvokeOnSmartLamp[]{c});
+    }
 
-        synchronized (callables) {
-            if (!callables.isEmpty()) {
-                invoke = callables.get(playIndex++);
+    private synchronized void addAll(InvokeOnSmartLamp[] steps) {
+        InvokeOnSmartLamp[] grown = Arrays.copyOf(callables, callables.length + steps.length);
+        System.arraycopy(steps, 0, grown, callables.length, steps.length);
+        callables = grown;
+    }
 
-                if (playIndex >= callables.size()) {
-                    playIndex = 0;
-                }
-            }
-        }
+    private void add(int... code) {
+        add(new Instruction(null, code));
+    }
 
-        return invoke;
+    /**
+     * @return A snapshot of the steps recorded so far.
+     */
+    List<InvokeOnSmartLamp> steps() {
+        return Collections.unmodifiableList(Arrays.asList(callables));
     }
 
-    void add(InvokeOnSmartLamp c) {
-        callables.add(c);
+    /**
+     * Compile the steps recorded so far into a flat array of instructions, that plays the same frames (beats) without
+     * locks. Later modifications of this sequence will not be reflected.
+     */
+    public CompiledSequence compile() {
+        return CompiledSequence.compile(this);
     }
 
     @Override
     public SmartLampSequence power(boolean on) {
-        add(facade -> facade.power(on));
+        add(POWER, on ? 1 : 0);
         return this;
     }
 
     @Override
     public SmartLampSequence setBrightness(byte percent) {
-        add(facade -> facade.setBrightness(percent));
+        add(BRIGHTNESS, percent);
         return this;
     }
 
     @Override
     public Future<SmartLampSequence> fadeBrightnessFromTo(byte from, byte to, FadeStyle fadeStyle) {
-        add(facade -> facade.fadeBrightnessFromTo(from, to, fadeStyle));
+        add(FADE_BRIGHTNESS_FROM_TO, from, to, fadeStyle.ordinal());
         return present();
     }
 
@@ -143,49 +158,49 @@ public class SmartLampSequence implements SmartLampFacade {
 
     @Override
     public Future<SmartLampSequence> fadeBrightnessTo(byte percent, FadeStyle fadeStyle) {
-        add(facade -> facade.fadeBrightnessTo(percent, fadeStyle));
+        add(FADE_BRIGHTNESS_TO, percent, fadeStyle.ordinal());
         return present();
     }
 
     @Override
     public SmartLampSequence setTemperature(int kelvin) {
-        add(facade -> facade.setTemperature(kelvin));
+        add(TEMPERATURE, kelvin);
         return this;
     }
 
     @Override
     public Future<SmartLampSequence> fadeTemperatureFromTo(int from, int to, FadeStyle fadeStyle) {
-        add(facade -> facade.fadeTemperatureFromTo(from, to, fadeStyle));
+        add(FADE_TEMPERATURE_FROM_TO, from, to, fadeStyle.ordinal());
         return present();
     }
 
     @Override
     public Future<SmartLampSequence> fadeTemperatureTo(int kelvin, FadeStyle fadeStyle) {
-        add(facade -> facade.fadeTemperatureTo(kelvin, fadeStyle));
+        add(FADE_TEMPERATURE_TO, kelvin, fadeStyle.ordinal());
         return present();
     }
 
     @Override
     public Future<? extends SmartLampFacade> fadeColorFromTo(int[] from, int[] to, FadeStyle fadeStyle) {
-        add(facade -> facade.fadeColorFromTo(from, to, fadeStyle));
+        add(new Instruction(new int[][]{from, to}, FADE_COLOR_FROM_TO, 0, fadeStyle.ordinal()));
         return present();
     }
 
     @Override
     public Future<? extends SmartLampFacade> fadeColorTo(int[] to, FadeStyle fadeStyle) {
-        add(facade -> facade.fadeColorTo(to, fadeStyle));
+        add(new Instruction(to, FADE_COLOR_TO, 0, fadeStyle.ordinal()));
         return present();
     }
 
     @Override
     public SmartLampSequence setScene(byte scene) {
-        add(facade -> facade.setScene(scene));
+        add(SCENE, scene);
         return this;
     }
 
     @Override
     public SmartLampSequence setColor(int red, int green, int blue) {
-        add(facade -> facade.setColor(red, green, blue));
+        add(COLOR, red, green, blue);
         return this;
     }
 
@@ -198,8 +213,8 @@ public class SmartLampSequence implements SmartLampFacade {
             return this;
         }
 
-        final SmartLampSequence inner = new PlayAllAtOneTimeSequence(this);
-        add(inner::play);
+        final PlayAllAtOneTimeSequence inner = new PlayAllAtOneTimeSequence(this);
+        add(inner);
         return inner;
     }
 
@@ -268,7 +283,7 @@ public class SmartLampSequence implements SmartLampFacade {
      * @param next Steps to append to the current content. Later modifications of this object will not be reflected.
      */
     public SmartLampSequence then(SmartLampSequence next) {
-        callables.addAll(next.callables);
+        addAll(next.callables);
         return this;
     }
 
@@ -278,9 +293,34 @@ public class SmartLampSequence implements SmartLampFacade {
     }
 
     /**
-     * A sequence that plays all the given callbacks at the same frame ({@link #play(SmartLampFacade)}.
+     * A step calling a single method of the lamp, recorded as an instruction of {@link CompiledSequence}: an opcode
+     * followed by its operands. An operand that is not an integer is passed as #constant, at index 0.
      */
-    static class PlayAllAtOneTimeSequence extends SmartLampSequence {
+    static final class Instruction implements InvokeOnSmartLamp {
+        final int[] code;
+        final Object[] constants;
+
+        Instruction(Object constant, int... code) {
+            this.code = code;
+            this.constants = new Object[]{constant};
+        }
+
+        @Override
+        public void invoke(SmartLampFacade facade) {
+            CompiledSequence.execute(facade, code, 0, constants);
+        }
+
+        @Override
+        public String toString() {
+            return CompiledSequence.toString(code, 0);
+        }
+    }
+
+    /**
+     * A sequence that plays all the given callbacks at the same frame ({@link #play(SmartLampFacade)}, using
+     * {@link SmartLampFacade#frame(java.util.function.Consumer)} so the lamp can merge them.
+     */
+    static class PlayAllAtOneTimeSequence extends SmartLampSequence implements InvokeOnSmartLamp {
         private static final Logger LOG = LoggerFactory.getLogger(PlayAllAtOneTimeSequence.class);
 
         PlayAllAtOneTimeSequence() {
@@ -293,13 +333,17 @@ public class SmartLampSequence implements SmartLampFacade {
 
         @Override
         public SmartLampSequence play(SmartLampFacade realLamp) {
-            synchronized (callables) {
-                LOG.debug("invoking {} callables in one step", callables.size());
-                callables.forEach(e -> e.invoke(realLamp));
-            }
+            List<InvokeOnSmartLamp> steps = steps();
+
+            LOG.debug("invoking {} callables in one step", steps.size());
+            realLamp.frame(lamp -> steps.forEach(e -> e.invoke(lamp)));
 
             return this;
         }
 
+        @Override
+        public void invoke(SmartLampFacade facade) {
+            play(facade);
+        }
     }
 }
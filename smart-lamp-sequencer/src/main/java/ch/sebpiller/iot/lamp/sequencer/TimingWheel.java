@@ -0,0 +1,271 @@
+package ch.sebpiller.iot.lamp.sequencer;
+
+import ch.sebpiller.iot.lamp.impl.LampThreads;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks after a delay, with a hashed timing wheel: a ring of buckets, one per tick, each holding the tasks due on
+ * that tick. A task due in more than one turn of the ring waits in its bucket for the turns remaining.
+ * <p>
+ * Scheduling a task costs the same whatever the number of tasks pending, and a single thread ticks the wheel for all
+ * the lamps: the sleeps of the sequences (see {@link CompiledSequence#play(ch.sebpiller.iot.lamp.SmartLampFacade, int,
+ * TimingWheel)}) become timed events instead of parked threads. The tasks due are handed to a dispatcher, so a lamp
+ * slow to answer does not delay the tasks of the others. The precision is one tick.
+ * <p>
+ * The thread only wakes up for the ticks whose bucket holds tasks, and sleeps until the next task is scheduled while
+ * the wheel is empty.
+ */
+public final class TimingWheel implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheel.class);
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    public static final long DEFAULT_TICK_MILLIS = 1;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor dispatcher;
+    private final ExecutorService ownDispatcher;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean running = true;
+    /**
+     * When the worker wakes up, in ns from the start of the wheel: {@link Long#MAX_VALUE} while the wheel is empty,
+     * {@link Long#MIN_VALUE} while it is awake.
+     */
+    private volatile long sleepingUntil = Long.MIN_VALUE;
+
+    // only used by the worker thread
+    private long tick;
+
+    /**
+     * A wheel of {@value #DEFAULT_WHEEL_SIZE} ticks of {@value #DEFAULT_TICK_MILLIS} ms, dispatching the tasks due to
+     * threads of its own.
+     */
+    public TimingWheel() {
+        this(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE, null);
+    }
+
+    /**
+     * @param wheelSize  Number of buckets, rounded up to a power of two.
+     * @param dispatcher Runs the tasks due, null to use threads of this wheel (see {@link LampThreads}).
+     */
+    public TimingWheel(long tickDuration, TimeUnit unit, int wheelSize, Executor dispatcher) {
+        Validate.isTrue(tickDuration > 0, "tick duration must be positive");
+        Validate.isTrue(wheelSize > 0 && wheelSize <= 1 << 30, "wheel size must be in 1..2^30");
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+
+        if (dispatcher == null) {
+            this.ownDispatcher = Executors.newCachedThreadPool(LampThreads.newThreadFactory("lamp-timer-task-", THREAD_COUNT));
+            this.dispatcher = this.ownDispatcher;
+        } else {
+            this.ownDispatcher = null;
+            this.dispatcher = dispatcher;
+        }
+
+        // not a thread of LampThreads: a virtual thread would add the delay of its scheduler to each wake up
+        this.worker = new Thread(this::work, "lamp-timer-" + THREAD_COUNT.incrementAndGet());
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Run #task once #delay has elapsed, at the precision of a tick.
+     *
+     * @return A handle to cancel the task.
+     * @throws IllegalStateException if this wheel is closed.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Validate.notNull(task);
+        Validate.validState(running, "timing wheel is closed");
+
+        Timeout timeout = new Timeout(task, elapsed() + unit.toNanos(Math.max(0, delay)));
+        added.add(timeout);
+
+        if (timeout.deadline < sleepingUntil) {
+            // due before the worker wakes up
+            LockSupport.unpark(worker);
+        }
+        return timeout;
+    }
+
+    /**
+     * @return The ns elapsed since the start of the wheel.
+     */
+    private long elapsed() {
+        return System.nanoTime() - startTime;
+    }
+
+    private void work() {
+        while (running) {
+            transferAdded();
+
+            // a bucket is expired once its tick is over
+            long next = nextBusyTick();
+            long wakeUp = next < 0 ? Long.MAX_VALUE : (next + 1) * tickNanos;
+            sleepingUntil = wakeUp;
+
+            long now;
+            while (running && added.isEmpty() && (now = elapsed()) < wakeUp) {
+                if (wakeUp == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, wakeUp - now);
+                }
+            }
+            sleepingUntil = Long.MIN_VALUE;
+
+            now = elapsed();
+            if (now >= wakeUp) {
+                tick = next;
+                expire(wheel[(int) (tick & mask)]);
+                tick++;
+            } else {
+                // woken up by a task scheduled: catch up with the clock, the buckets skipped are empty
+                tick = Math.max(tick, Math.min(now / tickNanos, next < 0 ? Long.MAX_VALUE : next));
+            }
+        }
+    }
+
+    /**
+     * @return The first tick from the current one whose bucket holds tasks, -1 if the wheel is empty.
+     */
+    private long nextBusyTick() {
+        for (long t = tick; t < tick + wheel.length; t++) {
+            if (!wheel[(int) (t & mask)].timeouts.isEmpty()) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Put the tasks scheduled since the last tick in their bucket.
+     */
+    private void transferAdded() {
+        Timeout t;
+        while ((t = added.poll()) != null) {
+            // a task already due goes to the current bucket
+            t.tick = Math.max(t.deadline / tickNanos, tick);
+            wheel[(int) (t.tick & mask)].timeouts.add(t);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        for (Iterator<Timeout> it = bucket.timeouts.iterator(); it.hasNext(); ) {
+            Timeout t = it.next();
+
+            if (t.state.get() == CANCELLED) {
+                it.remove();
+            } else if (t.tick <= tick) {
+                it.remove();
+                if (t.state.compareAndSet(PENDING, EXPIRED)) {
+                    dispatch(t);
+                }
+            }
+        }
+    }
+
+    private void dispatch(Timeout t) {
+        try {
+            dispatcher.execute(t.task);
+        } catch (RuntimeException e) {
+            LOG.error("failed to dispatch timed task {}: {}", t.task, e.toString(), e);
+        }
+    }
+
+    /**
+     * Stops the wheel: the tasks not due yet are dropped, the ones running are let to end.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(worker);
+
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (ownDispatcher != null) {
+            ownDispatcher.shutdown();
+        }
+    }
+
+    /**
+     * A task scheduled on a {@link TimingWheel}.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        /**
+         * In ns, from the start of the wheel.
+         */
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        /**
+         * The tick the task is due on. Its bucket is also expired on the turns of the wheel before, which leave it
+         * pending. Only used by the worker thread.
+         */
+        private long tick;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevent the task from running, if it has not been dispatched yet.
+         *
+         * @return false if the task has already been dispatched.
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * @return true once the task has been handed to the dispatcher.
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    private static final class Bucket {
+        private final List<Timeout> timeouts = new ArrayList<>();
+    }
+}
@@ -0,0 +1,88 @@
+package ch.sebpiller.iot.lamp.sequencer;
+
+import ch.sebpiller.iot.lamp.LampProperty;
+import ch.sebpiller.iot.lamp.SmartLampFacade;
+import ch.sebpiller.iot.lamp.impl.AbstractLampBase;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LookAheadSequencePlayerTest {
+    @Test
+    public void testSlowLampGetsItsFramesAhead() throws Exception {
+        CompiledSequence compiled = SmartLampSequence.record()
+                .setBrightness((byte) 100)
+                .setBrightness((byte) 0)
+                .compile();
+        long period = TimeUnit.MILLISECONDS.toNanos(200);
+        long beat = 0;
+
+        try (SlowLamp lamp = new SlowLamp(60);
+             TimingWheel wheel = new TimingWheel();
+             LookAheadSequencePlayer player = new LookAheadSequencePlayer(compiled, lamp, wheel)) {
+            lamp.setCoalescingWrites(true);
+
+            for (int i = 0; i < 8; i++) {
+                beat = System.nanoTime();
+                player.beat(300);
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(period));
+            }
+
+            // the writes are measured, not only the posts
+            assertThat(player.getLatency(TimeUnit.MILLISECONDS)).isGreaterThanOrEqualTo(30L);
+            // the frame of the last beat started ahead of the next beat
+            assertThat(lamp.played.get(lamp.played.size() - 1) - beat)
+                    .isLessThanOrEqualTo(period - TimeUnit.MILLISECONDS.toNanos(25));
+        }
+    }
+
+    /**
+     * A lamp taking #delay ms to write a brightness, recording when each frame is played.
+     */
+    private static final class SlowLamp extends AbstractLampBase {
+        private final List<Long> played = Collections.synchronizedList(new ArrayList<>());
+        private final long delay;
+
+        SlowLamp(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public SmartLampFacade setBrightness(byte percent) {
+            played.add(System.nanoTime());
+            write(LampProperty.BRIGHTNESS, () -> {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            return this;
+        }
+
+        @Override
+        public SmartLampFacade power(boolean on) {
+            return this;
+        }
+
+        @Override
+        public SmartLampFacade setTemperature(int kelvin) {
+            return this;
+        }
+
+        @Override
+        public SmartLampFacade setColor(int red, int green, int blue) {
+            return this;
+        }
+
+        @Override
+        public SmartLampFacade setScene(byte scene) {
+            return this;
+        }
+    }
+}
@@ -10,6 +10,14 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
 public class SmarlLampSequenceTest {
     private static final Logger LOG = LoggerFactory.getLogger(SmarlLampSequenceTest.class);
 
@@ -30,6 +38,64 @@ public class SmarlLampSequenceTest {
         metronome.stop();
     }
 
+    @Test
+    public void testCompiledSequencePlaysTheRecordedFrames() {
+        List<String> calls = new ArrayList<>();
+        SmartLampFacade lamp = new LoggingLamp() {
+            @Override
+            public LoggingLamp setBrightness(byte b) {
+                calls.add("brightness " + b);
+                return this;
+            }
+
+            @Override
+            public LoggingLamp setTemperature(int i) {
+                calls.add("temperature " + i);
+                return this;
+            }
+        };
+
+        CompiledSequence compiled = SmartLampSequence.record()
+                // beat #1
+                .start().setBrightness((byte) 100).setTemperature(3000).end()
+                // beat #2
+                .setBrightness((byte) 0)
+                .compile();
+
+        assertThat(compiled.size()).isEqualTo(2);
+
+        compiled.play(lamp).play(lamp).play(lamp);
+        assertThat(calls).containsExactly(
+                "brightness 100", "temperature 3000",
+                "brightness 0",
+                "brightness 100", "temperature 3000");
+    }
+
+    @Test
+    public void testTimedPlayDoesNotWaitForTheSleeps() throws InterruptedException {
+        List<String> calls = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(4);
+        SmartLampFacade lamp = new LoggingLamp() {
+            @Override
+            public LoggingLamp setBrightness(byte b) {
+                calls.add("brightness " + b);
+                done.countDown();
+                return this;
+            }
+        };
+
+        CompiledSequence compiled = SmartLampSequence.record().start().flash(2).end().compile();
+
+        try (TimingWheel wheel = new TimingWheel()) {
+            compiled.play(lamp, 0, wheel);
+            // only the first step has been played, the others follow each sleep
+            assertThat(calls).containsExactly("brightness 100");
+
+            assertThat(done.await(1, TimeUnit.SECONDS)).isTrue();
+            assertThat(calls).containsExactly("brightness 100", "brightness 0", "brightness 100", "brightness 0");
+        }
+    }
+
     @Test
     public void testSequencer() throws InterruptedException {
         final SmartLampSequence boomBoomBoomBoom = SmartLampSequence.record()
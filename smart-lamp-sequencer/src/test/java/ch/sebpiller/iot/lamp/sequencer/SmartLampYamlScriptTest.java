@@ -3,6 +3,7 @@ package ch.sebpiller.iot.lamp.sequencer;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.function.Executable;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class SmartLampYamlScriptTest {
@@ -26,7 +27,30 @@ public class SmartLampYamlScriptTest {
                 .fromInputStream(getClass().getResourceAsStream("/scripts/commented.yaml"));
         SmartLampSequence smartLampSequence = smartLampScript.buildMainLoopSequence();
 
-        smartLampSequence.callables.forEach(System.out::println);
+        smartLampSequence.steps().forEach(System.out::println);
+    }
+
+    @Test
+    public void testSequencesAreParsedOnce() {
+        SmartLampScript smartLampScript = SmartLampScript
+                .fromInputStream(getClass().getResourceAsStream("/scripts/sequences-references.yaml"));
+
+        assertThat(smartLampScript.getSequence("flash")).isNotNull().isSameAs(smartLampScript.getSequence("flash"));
+
+        // the steps are parsed once, but each script plays a sequence of its own
+        SmartLampSequence first = SmartLampScript.fromSingleCommand("on;brightness=80").getBeforeSequence();
+        SmartLampSequence second = SmartLampScript.fromSingleCommand("on;brightness=80").getBeforeSequence();
+        assertThat(second).isNotSameAs(first);
+        assertThat(second.steps()).isEqualTo(first.steps());
+    }
+
+    @Test
+    public void testParseCyclicReferences() {
+        assertThrows(IllegalArgumentException.class, () -> {
+            SmartLampScript smartLampScript = SmartLampScript
+                    .fromInputStream(getClass().getResourceAsStream("/scripts/cyclic_references.yaml"));
+            smartLampScript.buildMainLoopSequence();
+        });
     }
 
     @Test
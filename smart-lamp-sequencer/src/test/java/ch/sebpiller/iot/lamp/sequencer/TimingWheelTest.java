@@ -0,0 +1,96 @@
+package ch.sebpiller.iot.lamp.sequencer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TimingWheelTest {
+    @Test
+    public void testTaskWaitsForTheTurnsRemaining() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+
+        // a turn of the wheel lasts 8ms: the task is 6 turns away
+        try (TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8, Runnable::run)) {
+            long start = System.nanoTime();
+            wheel.schedule(ran::countDown, 50, TimeUnit.MILLISECONDS);
+
+            assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(50L);
+        }
+    }
+
+    @Test
+    public void testTaskAlreadyDueRunsOnNextTick() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+
+        // a task put in a bucket already passed would wait for a whole turn of 640ms
+        try (TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 64, Runnable::run)) {
+            long start = System.nanoTime();
+            wheel.schedule(ran::countDown, -1, TimeUnit.SECONDS);
+
+            assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(320L);
+        }
+    }
+
+    @Test
+    public void testSleepingWorkerWakesUpForAnEarlierTask() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+
+        try (TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8, Runnable::run)) {
+            // the wheel is empty, then the worker waits for a task far ahead
+            Thread.sleep(50);
+            wheel.schedule(() -> {
+            }, 10, TimeUnit.SECONDS);
+            Thread.sleep(50);
+
+            long start = System.nanoTime();
+            wheel.schedule(ran::countDown, 20, TimeUnit.MILLISECONDS);
+
+            assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertThat(elapsed).isGreaterThanOrEqualTo(20L);
+            assertThat(elapsed).isLessThan(500L);
+        }
+    }
+
+    @Test
+    public void testCancelledTaskDoesNotRun() throws Exception {
+        CountDownLatch cancelled = new CountDownLatch(1);
+        CountDownLatch after = new CountDownLatch(1);
+
+        try (TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8, Runnable::run)) {
+            TimingWheel.Timeout timeout = wheel.schedule(cancelled::countDown, 20, TimeUnit.MILLISECONDS);
+            TimingWheel.Timeout next = wheel.schedule(after::countDown, 40, TimeUnit.MILLISECONDS);
+
+            assertThat(timeout.cancel()).isTrue();
+            assertThat(timeout.isCancelled()).isTrue();
+
+            assertThat(after.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(cancelled.getCount()).isEqualTo(1L);
+            assertThat(timeout.isExpired()).isFalse();
+
+            // too late to cancel a task dispatched
+            assertThat(next.isExpired()).isTrue();
+            assertThat(next.cancel()).isFalse();
+        }
+    }
+
+    @Test
+    public void testCloseDropsPendingTasks() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8, Runnable::run);
+
+        TimingWheel.Timeout timeout = wheel.schedule(ran::countDown, 50, TimeUnit.MILLISECONDS);
+        wheel.close();
+
+        assertThat(ran.await(200, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(timeout.isExpired()).isFalse();
+        assertThatThrownBy(() -> wheel.schedule(ran::countDown, 0, TimeUnit.MILLISECONDS))
+                .isInstanceOf(IllegalStateException.class);
+    }
+}